@@ -18,6 +18,7 @@ package com.github.themeetgroup.kafka.connect.rabbitmq;
 import com.rabbitmq.client.ConnectionFactory;
 import org.apache.kafka.common.config.AbstractConfig;
 import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.common.config.ConfigException;
 
 import java.util.Map;
 
@@ -61,6 +62,14 @@ public abstract class CommonRabbitMQConnectorConfig extends AbstractConfig {
   public static final String TRUSTSTORE_PASSWORD = "rabbitmq.ssl.truststore.password";
   public static final String TRUSTSTORE_TYPE = "rabbitmq.ssl.truststore.type";
   public static final String SSL_PROTOCOL = "rabbitmq.ssl.protocol";
+  public static final String CONNECTION_SHARED_CONFIG = "rabbitmq.connection.shared";
+  public static final String CONNECTION_MAX_CHANNELS_CONFIG = "rabbitmq.connection.max.channels";
+  public static final String EXECUTOR_CONFIG = "rabbitmq.executor";
+  public static final String EXECUTOR_THREADS_CONFIG = "rabbitmq.executor.threads";
+
+  public static final String EXECUTOR_DEFAULT = "default";
+  public static final String EXECUTOR_SHARED = "shared";
+  public static final String EXECUTOR_VIRTUAL = "virtual";
 
   static final String HOST_DOC = "The RabbitMQ host to connect to. See `ConnectionFactory.setHost(java.lang.String) <https://www.rabbitmq.com/releases/rabbitmq-java-client/current-javadoc/com/rabbitmq/client/ConnectionFactory.html#setHost-java.lang.String->`_";
   static final String USERNAME_DOC = "The username to authenticate to RabbitMQ with. See `ConnectionFactory.setUsername(java.lang.String) <https://www.rabbitmq.com/releases/rabbitmq-java-client/current-javadoc/com/rabbitmq/client/ConnectionFactory.html#setUsername-java.lang.String->`_";
@@ -93,6 +102,22 @@ public abstract class CommonRabbitMQConnectorConfig extends AbstractConfig {
   static final String TRUSTSTORE_PASSWORD_DOC = "Truststore password";
   static final String TRUSTSTORE_TYPE_DOC = "Truststore type (only JKS supported)";
   static final String SSL_PROTOCOL_DOC = "SSL/TLS protocol to use";
+  static final String CONNECTION_SHARED_DOC = "Share AMQP connections between the sink tasks of a worker that connect " +
+      "to the same broker, virtual host and credentials. Each task still uses its own channels. Sink connections are " +
+      "never shared with consumers, so a resource alarm raised by publishing does not block them. The connections " +
+      "source connectors use to inspect queue depths are shared as well. This setting does not apply to source " +
+      "tasks: each one always opens a connection of its own, because a task whose buffer is full holds up the " +
+      "consumer dispatch of its connection.";
+  static final String CONNECTION_MAX_CHANNELS_DOC = "Maximum number of task channels carried by a shared connection " +
+      "before another connection is opened. Zero for unlimited.";
+  static final String EXECUTOR_DOC = "Threads used by connections for consumer dispatch, heartbeats and socket I/O. `" +
+      EXECUTOR_DEFAULT + "` lets every connection create its own threads. `" + EXECUTOR_SHARED + "` dispatches the " +
+      "consumers of every connection on one worker wide pool of " + EXECUTOR_THREADS_CONFIG + " threads and shares " +
+      "a single heartbeat thread. It is only supported by sink connectors: a source task blocks its dispatch thread " +
+      "while its buffer is full, which would hold up the consumers of every other connector on the pool. `" + EXECUTOR_VIRTUAL + "` runs dispatch and socket I/O on virtual threads and " +
+      "requires Java 21 or later. See `ConnectionFactory.setSharedExecutor(java.util.concurrent.ExecutorService) <https://www.rabbitmq.com/releases/rabbitmq-java-client/current-javadoc/com/rabbitmq/client/ConnectionFactory.html#setSharedExecutor-java.util.concurrent.ExecutorService->`_";
+  static final String EXECUTOR_THREADS_DOC = "Size of the shared consumer dispatch pool when " + EXECUTOR_CONFIG +
+      " is `" + EXECUTOR_SHARED + "`. Zero uses twice the number of available processors, the client default.";
 
   public final String username;
   public final String password;
@@ -117,6 +142,10 @@ public abstract class CommonRabbitMQConnectorConfig extends AbstractConfig {
   public final String truststorePassword;
   public final String truststoreType;
   public final String sslProtocol;
+  public final boolean connectionShared;
+  public final int connectionMaxChannels;
+  public final String executor;
+  public final int executorThreads;
 
   public final ConnectionFactory connectionFactory;
 
@@ -145,11 +174,24 @@ public abstract class CommonRabbitMQConnectorConfig extends AbstractConfig {
     this.truststorePassword = this.getString(TRUSTSTORE_PASSWORD);
     this.truststoreType = this.getString(TRUSTSTORE_TYPE);
     this.sslProtocol = this.getString(SSL_PROTOCOL);
+    this.connectionShared = this.getBoolean(CONNECTION_SHARED_CONFIG);
+    this.connectionMaxChannels = this.getInt(CONNECTION_MAX_CHANNELS_CONFIG);
+    this.executor = this.getString(EXECUTOR_CONFIG);
+    final int executorThreads = this.getInt(EXECUTOR_THREADS_CONFIG);
+    this.executorThreads = executorThreads > 0 ? executorThreads : Runtime.getRuntime().availableProcessors() * 2;
 
     this.connectionFactory = connectionFactory();
   }
 
   public static ConfigDef config() {
+    return config(true);
+  }
+
+  /**
+   * @param sharedExecutorSupported false to reject {@link #EXECUTOR_SHARED} while the settings are parsed, before the
+   * constructor would create the shared pool.
+   */
+  protected static ConfigDef config(boolean sharedExecutorSupported) {
     return new ConfigDef()
         .define(HOST_CONFIG, ConfigDef.Type.STRING, ConnectionFactory.DEFAULT_HOST, ConfigDef.Importance.HIGH, HOST_DOC)
         .define(USERNAME_CONFIG, ConfigDef.Type.STRING, ConnectionFactory.DEFAULT_USER, ConfigDef.Importance.HIGH, USERNAME_DOC)
@@ -173,7 +215,44 @@ public abstract class CommonRabbitMQConnectorConfig extends AbstractConfig {
         .define(TRUSTSTORE_LOCATION, ConfigDef.Type.STRING, "", ConfigDef.Importance.LOW, TRUSTSTORE_LOCATION_DOC)
         .define(TRUSTSTORE_PASSWORD, ConfigDef.Type.STRING, "", ConfigDef.Importance.LOW, TRUSTSTORE_PASSWORD_DOC)
         .define(TRUSTSTORE_TYPE, ConfigDef.Type.STRING, "", ConfigDef.Importance.LOW, TRUSTSTORE_TYPE_DOC)
-        .define(SSL_PROTOCOL, ConfigDef.Type.STRING, "", ConfigDef.Importance.LOW, SSL_PROTOCOL_DOC);
+        .define(SSL_PROTOCOL, ConfigDef.Type.STRING, "", ConfigDef.Importance.LOW, SSL_PROTOCOL_DOC)
+        .define(CONNECTION_SHARED_CONFIG, ConfigDef.Type.BOOLEAN, true, ConfigDef.Importance.LOW, CONNECTION_SHARED_DOC)
+        .define(CONNECTION_MAX_CHANNELS_CONFIG, ConfigDef.Type.INT, 64, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, CONNECTION_MAX_CHANNELS_DOC)
+        .define(EXECUTOR_CONFIG, ConfigDef.Type.STRING, EXECUTOR_DEFAULT, new ExecutorValidator(sharedExecutorSupported), ConfigDef.Importance.LOW, EXECUTOR_DOC)
+        .define(EXECUTOR_THREADS_CONFIG, ConfigDef.Type.INT, 0, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, EXECUTOR_THREADS_DOC);
+  }
+
+  /**
+   * Accepts the known executors, {@link #EXECUTOR_SHARED} only if the connector supports it and
+   * {@link #EXECUTOR_VIRTUAL} only on a JVM with virtual threads.
+   */
+  static final class ExecutorValidator implements ConfigDef.Validator {
+    private final ConfigDef.ValidString executors;
+    private final boolean sharedSupported;
+
+    ExecutorValidator(boolean sharedSupported) {
+      this.executors = sharedSupported ?
+          ConfigDef.ValidString.in(EXECUTOR_DEFAULT, EXECUTOR_SHARED, EXECUTOR_VIRTUAL) :
+          ConfigDef.ValidString.in(EXECUTOR_DEFAULT, EXECUTOR_VIRTUAL);
+      this.sharedSupported = sharedSupported;
+    }
+
+    @Override
+    public void ensureValid(String name, Object value) {
+      if (EXECUTOR_SHARED.equals(value) && !this.sharedSupported) {
+        throw new ConfigException(name, value, "is not supported by the source connector, whose consumers block " +
+            "their dispatch thread while the task's buffer is full.");
+      }
+      this.executors.ensureValid(name, value);
+      if (EXECUTOR_VIRTUAL.equals(value) && !ConnectionExecutors.virtualThreadsSupported()) {
+        throw new ConfigException(name, value, "requires Java 21 or later.");
+      }
+    }
+
+    @Override
+    public String toString() {
+      return this.executors.toString();
+    }
   }
 
   public final ConnectionFactory connectionFactory() {
@@ -193,6 +272,15 @@ public abstract class CommonRabbitMQConnectorConfig extends AbstractConfig {
     connectionFactory.setTopologyRecoveryEnabled(this.topologyRecoveryEnabled);
     connectionFactory.setNetworkRecoveryInterval(this.networkRecoveryInterval);
 
+    if (EXECUTOR_SHARED.equals(this.executor)) {
+      connectionFactory.setSharedExecutor(ConnectionExecutors.shared(this.executorThreads));
+      connectionFactory.setHeartbeatExecutor(ConnectionExecutors.heartbeat());
+    } else if (EXECUTOR_VIRTUAL.equals(this.executor)) {
+      connectionFactory.setThreadFactory(ConnectionExecutors.virtualThreadFactory());
+      connectionFactory.setSharedExecutor(ConnectionExecutors.virtual());
+      connectionFactory.setHeartbeatExecutor(ConnectionExecutors.heartbeat());
+    }
+
     connectionFactory.setPort(this.port);
     if (this.useSsl)
       try {
@@ -0,0 +1,127 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker wide executors handed to every {@link com.rabbitmq.client.ConnectionFactory}, so that connections stop
+ * creating their own consumer dispatch and heartbeat threads. The executors live as long as the worker; connections
+ * never shut them down.
+ */
+final class ConnectionExecutors {
+  private static final Logger log = LoggerFactory.getLogger(ConnectionExecutors.class);
+
+  private static final Map<Integer, ExecutorService> SHARED = new ConcurrentHashMap<>();
+  private static final Object VIRTUAL_LOCK = new Object();
+  private static volatile ScheduledExecutorService heartbeatExecutor;
+  private static volatile ThreadFactory virtualThreadFactory;
+  private static volatile ExecutorService virtualExecutor;
+
+  private ConnectionExecutors() {
+  }
+
+  /**
+   * @return a fixed pool of daemon threads shared by every connection configured with the same thread count.
+   */
+  static ExecutorService shared(int threads) {
+    return SHARED.computeIfAbsent(threads, t -> {
+      log.info("Creating shared consumer dispatch pool with {} threads", t);
+      return Executors.newFixedThreadPool(t, daemonThreadFactory("rabbitmq-dispatch-" + t + "-"));
+    });
+  }
+
+  static ScheduledExecutorService heartbeat() {
+    if (null == heartbeatExecutor) {
+      synchronized (ConnectionExecutors.class) {
+        if (null == heartbeatExecutor) {
+          ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, daemonThreadFactory("rabbitmq-heartbeat-"));
+          executor.setRemoveOnCancelPolicy(true);
+          heartbeatExecutor = executor;
+        }
+      }
+    }
+    return heartbeatExecutor;
+  }
+
+  /**
+   * @return true if the running JVM provides virtual threads (Java 21 and later).
+   */
+  static boolean virtualThreadsSupported() {
+    try {
+      Thread.class.getMethod("ofVirtual");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Creates a virtual thread per connection reader and per consumer dispatch task. The connector is built for Java 8,
+   * so the Java 21 APIs are looked up reflectively.
+   */
+  static ThreadFactory virtualThreadFactory() {
+    initializeVirtual();
+    return virtualThreadFactory;
+  }
+
+  static ExecutorService virtual() {
+    initializeVirtual();
+    return virtualExecutor;
+  }
+
+  private static void initializeVirtual() {
+    if (null != virtualExecutor) {
+      return;
+    }
+    synchronized (VIRTUAL_LOCK) {
+      if (null != virtualExecutor) {
+        return;
+      }
+      try {
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "rabbitmq-virtual-", 0L);
+        ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        virtualThreadFactory = threadFactory;
+        virtualExecutor = (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+      } catch (ReflectiveOperationException e) {
+        throw new UnsupportedOperationException("Virtual threads require Java 21 or later.", e);
+      }
+    }
+  }
+
+  private static ThreadFactory daemonThreadFactory(final String prefix) {
+    final AtomicInteger threadNumber = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
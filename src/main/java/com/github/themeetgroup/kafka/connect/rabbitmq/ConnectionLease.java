@@ -0,0 +1,82 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A task's share of a connection handed out by {@link SharedConnectionManager}. Channels must be created through the
+ * lease so that they are closed when the lease is released, without closing the connection under other tasks.
+ */
+public class ConnectionLease implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(ConnectionLease.class);
+  private final SharedConnectionManager manager;
+  private final SharedConnectionManager.PooledConnection pooled;
+  private final int reservedChannels;
+  private final List<Channel> channels = new ArrayList<>();
+  private boolean closed;
+
+  ConnectionLease(SharedConnectionManager manager, SharedConnectionManager.PooledConnection pooled, int reservedChannels) {
+    this.manager = manager;
+    this.pooled = pooled;
+    this.reservedChannels = reservedChannels;
+  }
+
+  public Connection connection() {
+    return this.pooled.connection();
+  }
+
+  public synchronized Channel createChannel() throws IOException {
+    Channel channel = this.pooled.connection().createChannel();
+    if (null == channel) {
+      throw new IOException("No channel available on connection " + this.pooled.connection());
+    }
+    this.channels.add(channel);
+    return channel;
+  }
+
+  /**
+   * Closes the channels created through this lease and releases the connection.
+   */
+  @Override
+  public synchronized void close() {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    for (Channel channel : this.channels) {
+      try {
+        if (channel.isOpen()) {
+          channel.close();
+        }
+      } catch (IOException | TimeoutException | ShutdownSignalException e) {
+        log.warn("Exception thrown while closing channel {}.", channel.getChannelNumber(), e);
+      }
+    }
+    this.channels.clear();
+    this.manager.release(this.pooled, this.reservedChannels);
+  }
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq;
+
+import com.rabbitmq.client.Connection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * JVM wide registry of AMQP connections. Leases with the same connection settings and {@link Role} share a
+ * connection and only open their own channels on it. Source leases are the exception and always get a connection of
+ * their own. Connections are reference counted and closed once the last
+ * lease is released. A connection is only shared until it carries
+ * {@link CommonRabbitMQConnectorConfig#connectionMaxChannels} channels, after which a new one is opened.
+ *
+ * The registry lock only guards the bookkeeping. Connections are opened and closed outside of it, so a slow or
+ * unreachable broker only holds up the leases waiting for that particular connection.
+ */
+public class SharedConnectionManager {
+
+  private static final Logger log = LoggerFactory.getLogger(SharedConnectionManager.class);
+  private static final SharedConnectionManager INSTANCE = new SharedConnectionManager(config -> config.connectionFactory.newConnection());
+
+  /**
+   * What a connection is used for. Roles never share a connection: a broker raises a resource alarm by blocking the
+   * connections that publish, which must not stop consumers from receiving and acknowledging messages.
+   */
+  public enum Role {
+    /**
+     * Consumers of source tasks. Their dispatch threads block while the task's buffer is full, so source leases are
+     * never shared: one slow task must not starve the consumers of another.
+     */
+    SOURCE,
+    /**
+     * Publishers of sink tasks.
+     */
+    SINK,
+    /**
+     * Short lived channels of connectors that inspect the broker.
+     */
+    ADMIN
+  }
+
+  interface ConnectionOpener {
+    Connection open(CommonRabbitMQConnectorConfig config) throws IOException, TimeoutException;
+  }
+
+  private final ConnectionOpener opener;
+  private final Map<ConnectionKey, List<PooledConnection>> pools = new HashMap<>();
+
+  SharedConnectionManager(ConnectionOpener opener) {
+    this.opener = opener;
+  }
+
+  public static SharedConnectionManager instance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Leases a connection with room for {@code channels} channels.
+   */
+  public ConnectionLease acquire(CommonRabbitMQConnectorConfig config, Role role, int channels) throws IOException, TimeoutException {
+    final PooledConnection pooled;
+    boolean open = true;
+    if (!config.connectionShared || Role.SOURCE == role) {
+      pooled = new PooledConnection(null);
+      pooled.reserve(channels);
+    } else {
+      final ConnectionKey key = new ConnectionKey(config, role);
+      synchronized (this) {
+        List<PooledConnection> pool = this.pools.computeIfAbsent(key, k -> new ArrayList<>());
+        PooledConnection shared = null;
+        for (PooledConnection candidate : pool) {
+          if (candidate.isUsable() && candidate.canReserve(channels, config.connectionMaxChannels)) {
+            shared = candidate;
+            break;
+          }
+        }
+        if (null == shared) {
+          shared = new PooledConnection(key);
+          pool.add(shared);
+        } else {
+          log.debug("acquire() - Sharing connection of {} ({} channels reserved)", role, shared.channels);
+          open = false;
+        }
+        shared.reserve(channels);
+        pooled = shared;
+      }
+    }
+
+    if (open) {
+      try {
+        log.info("Opening {} connection to {}:{}/{} (SSL: {})", role, config.host, config.port, config.virtualHost, config.useSsl);
+        pooled.connection.complete(this.opener.open(config));
+      } catch (IOException | TimeoutException | RuntimeException e) {
+        pooled.connection.completeExceptionally(e);
+        release(pooled, channels);
+        throw e;
+      }
+    } else {
+      try {
+        pooled.await();
+      } catch (IOException | TimeoutException | RuntimeException e) {
+        release(pooled, channels);
+        throw e;
+      }
+    }
+    return new ConnectionLease(this, pooled, channels);
+  }
+
+  void release(PooledConnection pooled, int channels) {
+    synchronized (this) {
+      pooled.release(channels);
+      if (pooled.references > 0) {
+        return;
+      }
+      if (null != pooled.key) {
+        List<PooledConnection> pool = this.pools.get(pooled.key);
+        if (null != pool) {
+          pool.remove(pooled);
+          if (pool.isEmpty()) {
+            this.pools.remove(pooled.key);
+          }
+        }
+      }
+    }
+    // Nobody can lease the connection any more, so it is closed without holding up other leases.
+    final Connection connection = pooled.established();
+    if (null == connection) {
+      return;
+    }
+    try {
+      log.info("Closing connection {}", connection);
+      connection.close();
+    } catch (IOException e) {
+      log.error("Exception thrown while closing connection.", e);
+    }
+  }
+
+  static final class PooledConnection {
+    final ConnectionKey key;
+    final CompletableFuture<Connection> connection = new CompletableFuture<>();
+    int references;
+    int channels;
+
+    PooledConnection(ConnectionKey key) {
+      this.key = key;
+    }
+
+    /**
+     * @return the connection of a lease, which is always established.
+     */
+    Connection connection() {
+      return this.connection.join();
+    }
+
+    /**
+     * @return false if the connection could not be opened or was closed. One that is still being opened is usable.
+     */
+    boolean isUsable() {
+      if (!this.connection.isDone()) {
+        return true;
+      }
+      final Connection connection = established();
+      return null != connection && connection.isOpen();
+    }
+
+    /**
+     * @return the connection, or null if it is still being opened or could not be opened.
+     */
+    Connection established() {
+      return this.connection.isDone() && !this.connection.isCompletedExceptionally() ? this.connection.join() : null;
+    }
+
+    /**
+     * Waits for the lease that opens the connection.
+     */
+    void await() throws IOException, TimeoutException {
+      try {
+        this.connection.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the connection to be opened");
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof TimeoutException) {
+          throw (TimeoutException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw new IOException(cause);
+      }
+    }
+
+    boolean canReserve(int requested, int maxChannels) {
+      return maxChannels <= 0 || this.channels + requested <= maxChannels;
+    }
+
+    void reserve(int requested) {
+      this.references++;
+      this.channels += requested;
+    }
+
+    void release(int requested) {
+      this.references--;
+      this.channels -= requested;
+    }
+  }
+
+  /**
+   * Identifies connections that can be shared. Every setting that changes how the connection is established is part
+   * of the key, together with the role of the lease.
+   */
+  static final class ConnectionKey {
+    private final List<Object> values;
+
+    ConnectionKey(CommonRabbitMQConnectorConfig config, Role role) {
+      this.values = Arrays.asList(
+          role,
+          config.host,
+          config.port,
+          config.virtualHost,
+          config.username,
+          config.password,
+          config.useSsl,
+          config.keystoreLocation,
+          config.truststoreLocation,
+          config.sslProtocol,
+          config.requestedChannelMax,
+          config.requestedFrameMax,
+          config.requestedHeartbeat,
+          config.automaticRecoveryEnabled,
+          config.topologyRecoveryEnabled,
+          config.networkRecoveryInterval,
+          config.executor,
+          config.executorThreads
+      );
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ConnectionKey)) {
+        return false;
+      }
+      return this.values.equals(((ConnectionKey) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.values.hashCode();
+    }
+  }
+}
@@ -17,9 +17,9 @@
 package com.github.themeetgroup.kafka.connect.rabbitmq.sink;
 
 import com.github.jcustenborder.kafka.connect.utils.VersionUtil;
+import com.github.themeetgroup.kafka.connect.rabbitmq.ConnectionLease;
+import com.github.themeetgroup.kafka.connect.rabbitmq.SharedConnectionManager;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.AMQP.BasicProperties;
 
 import org.apache.kafka.connect.errors.ConnectException;
@@ -41,7 +41,7 @@ public class RabbitMQSinkTask extends SinkTask {
   RabbitMQSinkConnectorConfig config;
 
   Channel channel;
-  Connection connection;
+  ConnectionLease connection;
 
   @Override
   public String version() {
@@ -73,11 +73,8 @@ public class RabbitMQSinkTask extends SinkTask {
   @Override
   public void start(Map<String, String> settings) {
     this.config = new RabbitMQSinkConnectorConfig(settings);
-    ConnectionFactory connectionFactory = this.config.connectionFactory();
     try {
-      log.info("Opening connection to {}:{}/{} (SSL: {})", this.config.host, this.config.port, this.config.virtualHost,
-          this.config.useSsl);
-      this.connection = connectionFactory.newConnection();
+      this.connection = SharedConnectionManager.instance().acquire(this.config, SharedConnectionManager.Role.SINK, 1);
     } catch (IOException | TimeoutException e) {
       throw new ConnectException(e);
     }
@@ -94,10 +91,8 @@ public class RabbitMQSinkTask extends SinkTask {
 
   @Override
   public void stop() {
-    try {
+    if (null != this.connection) {
       this.connection.close();
-    } catch (IOException e) {
-      log.error("Exception thrown while closing connection.", e);
     }
   }
 
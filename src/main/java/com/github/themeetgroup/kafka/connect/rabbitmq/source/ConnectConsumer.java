@@ -15,27 +15,298 @@
  */
 package com.github.themeetgroup.kafka.connect.rabbitmq.source;
 
+import com.github.themeetgroup.kafka.connect.rabbitmq.source.data.SourceOffset;
 import com.github.themeetgroup.kafka.connect.rabbitmq.source.data.SourceRecordBuilder;
-import com.github.jcustenborder.kafka.connect.utils.data.SourceRecordConcurrentLinkedDeque;
 import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
 import com.rabbitmq.client.ShutdownSignalException;
 import org.apache.kafka.connect.source.SourceRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
 
+/**
+ * Consumer for a single queue. Every queue is consumed on its own channel so that each one gets its own dispatch
+ * thread, flow control window and prefetch limit.
+ *
+ * Records carry the epoch of the channel they were delivered on, which is raised each time automatic recovery
+ * reopens the channel. Records of an earlier epoch are purged from the buffer and their commits are ignored, because
+ * the broker requeued their deliveries when the old channel closed.
+ *
+ * A delivery that can not be converted either fails the task or, when errors are tolerated, is rejected without
+ * requeueing so that the broker dead-letters it. Rejections wait for the next acknowledgement and are sent together
+ * with it, so a poison message costs no extra round trip and never holds up the deliveries around it.
+ */
 class ConnectConsumer implements Consumer {
 
   private static final Logger log = LoggerFactory.getLogger(ConnectConsumer.class);
-  private final SourceRecordConcurrentLinkedDeque records;
+  private final String queue;
+  private final Channel channel;
+  private final SourceRecordBuffer records;
+  private final DeliveryTagTracker deliveryTags;
   private final SourceRecordBuilder sourceRecordBuilder;
+  private final ConversionSequencer conversions;
+  private final RedeliveryDeduplicator deduplicator;
+  private final Map<Long, String> dedupKeys;
+  private final MessageAggregator aggregator;
+  private final SourceTaskMetrics.QueueMetrics metrics;
+  private final boolean prefetchGlobal;
+  private final boolean errorsTolerated;
+  /**
+   * Tags of deliveries that could not be converted and were not rejected yet. They also count as completed in
+   * {@link #deliveryTags}, so they do not hold up the acknowledgement of later deliveries.
+   */
+  private final ConcurrentSkipListSet<Long> rejectedTags = new ConcurrentSkipListSet<>();
+  private volatile int prefetchCount;
+  private volatile String consumerTag;
+  private volatile long commitLatencyNanos;
+  private volatile int epoch;
 
-  ConnectConsumer(SourceRecordConcurrentLinkedDeque records, RabbitMQSourceConnectorConfig config) throws ClassNotFoundException, NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
+  /**
+   * @param conversionExecutor pool that converts deliveries to records, or null to convert on the dispatch thread.
+   */
+  ConnectConsumer(String queue, Channel channel, SourceRecordBuffer records, RabbitMQSourceConnectorConfig config, Executor conversionExecutor, SourceTaskMetrics metrics) throws ClassNotFoundException, NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
+    this.queue = queue;
+    this.channel = channel;
     this.records = records;
+    this.deliveryTags = new DeliveryTagTracker();
     this.sourceRecordBuilder = new SourceRecordBuilder(config);
+    this.conversions = null == conversionExecutor ? null :
+        new ConversionSequencer(queue, conversionExecutor, records, this::isStale, config.bufferMaxRecords);
+    this.prefetchGlobal = config.prefetchAdaptive || config.prefetchGlobal;
+    this.errorsTolerated = config.errorsTolerated;
+    this.deduplicator = RedeliveryDeduplicator.forQueue(config, queue);
+    this.dedupKeys = null == this.deduplicator ? null : new ConcurrentHashMap<>();
+    this.aggregator = config.aggregationMaxMessages > 0 ?
+        new MessageAggregator(queue, this.sourceRecordBuilder, records, this::isStale, config) : null;
+    this.metrics = metrics.queue(queue);
+    this.metrics.unacked((metricConfig, now) -> this.deliveryTags.unacked());
+    if (channel instanceof Recoverable) {
+      ((Recoverable) channel).addRecoveryListener(new RecoveryListener() {
+        @Override
+        public void handleRecovery(Recoverable recoverable) {
+          recovered();
+        }
+
+        @Override
+        public void handleRecoveryStarted(Recoverable recoverable) {
+          log.trace("handleRecoveryStarted({})", queue);
+        }
+      });
+    }
+  }
+
+  String queue() {
+    return this.queue;
+  }
+
+  Channel channel() {
+    return this.channel;
+  }
+
+  /**
+   * Sets the prefetch count of the channel. Adaptive prefetch always applies the limit to the whole channel, because
+   * changing a per consumer limit does not affect consumers that are already running.
+   */
+  void qos(int prefetchCount) throws IOException {
+    log.trace("qos({}) - basicQos({}, {})", this.queue, prefetchCount, this.prefetchGlobal);
+    this.channel.basicQos(prefetchCount, this.prefetchGlobal);
+    this.prefetchCount = prefetchCount;
+  }
+
+  int prefetchCount() {
+    return this.prefetchCount;
+  }
+
+  /**
+   * @return moving average of the time between a delivery and its commit to Kafka, in nanoseconds.
+   */
+  long commitLatencyNanos() {
+    return this.commitLatencyNanos;
+  }
+
+  /**
+   * Marks a delivery as committed to Kafka.
+   *
+   * @return the number of deliveries completed since the last acknowledgement.
+   */
+  int complete(long deliveryTag) {
+    return complete(deliveryTag, deliveryTag);
+  }
+
+  /**
+   * Marks the deliveries from {@code firstDeliveryTag} to {@code deliveryTag}, the contents of an aggregated record,
+   * as committed to Kafka.
+   *
+   * @return the number of deliveries completed since the last acknowledgement.
+   */
+  int complete(long firstDeliveryTag, long deliveryTag) {
+    if (null != this.dedupKeys) {
+      for (long tag = firstDeliveryTag; tag <= deliveryTag; tag++) {
+        String key = this.dedupKeys.remove(tag);
+        if (null != key) {
+          this.deduplicator.committed(key);
+        }
+      }
+    }
+    Long deliveredNanos = this.deliveryTags.complete(firstDeliveryTag, deliveryTag);
+    if (null != deliveredNanos) {
+      long latency = System.nanoTime() - deliveredNanos;
+      this.metrics.recordAckLatency(latency);
+      long average = this.commitLatencyNanos;
+      this.commitLatencyNanos = average == 0L ? latency : average + ((latency - average) >> 3);
+    }
+    return this.deliveryTags.completedSinceAck();
+  }
+
+  /**
+   * Hands a partially filled aggregate to the buffer once its linger time has passed.
+   */
+  void flushExpiredAggregate() {
+    if (null != this.aggregator) {
+      this.aggregator.flushExpired();
+    }
+  }
+
+  /**
+   * Settles every delivery up to the highest contiguous tag committed to Kafka or rejected. Without rejected
+   * deliveries this is a single {@code basicAck(tag, true)}. Otherwise the range is split into runs of committed and
+   * rejected deliveries, each settled with one {@code basicAck(tag, true)} or {@code basicNack(tag, true, false)}.
+   */
+  synchronized void ack() throws IOException {
+    final long deliveryTag = this.deliveryTags.ackable();
+    if (deliveryTag <= 0L) {
+      return;
+    }
+    long from = this.deliveryTags.lastAcked() + 1L;
+    if (!this.rejectedTags.isEmpty()) {
+      // Tags from before a channel recovery were requeued by the broker.
+      this.rejectedTags.headSet(from).clear();
+      Long rejected;
+      while (null != (rejected = this.rejectedTags.ceiling(from)) && rejected <= deliveryTag) {
+        if (rejected > from) {
+          log.trace("ack({}) - basicAck({}, true)", this.queue, rejected - 1L);
+          this.channel.basicAck(rejected - 1L, true);
+          this.deliveryTags.acked(rejected - 1L);
+        }
+        long last = rejected;
+        while (last < deliveryTag && this.rejectedTags.contains(last + 1L)) {
+          last++;
+        }
+        log.debug("ack({}) - basicNack({}, true, false) rejecting {} message(s)", this.queue, last, last - rejected + 1L);
+        this.channel.basicNack(last, true, false);
+        this.deliveryTags.acked(last);
+        this.rejectedTags.headSet(last, true).clear();
+        this.metrics.recordRejected(last - rejected + 1L);
+        from = last + 1L;
+      }
+    }
+    if (from <= deliveryTag) {
+      log.trace("ack({}) - basicAck({}, true)", this.queue, deliveryTag);
+      this.channel.basicAck(deliveryTag, true);
+      this.deliveryTags.acked(deliveryTag);
+    }
+  }
+
+  /**
+   * Remembers the tag returned by {@code basicConsume} so that the consumer can be cancelled.
+   */
+  void consumerTag(String consumerTag) {
+    this.consumerTag = consumerTag;
+  }
+
+  /**
+   * Stops the broker from sending further deliveries to this consumer.
+   */
+  void cancel() throws IOException {
+    final String consumerTag = this.consumerTag;
+    if (null == consumerTag || !this.channel.isOpen()) {
+      return;
+    }
+    log.trace("cancel({}) - basicCancel({})", this.queue, consumerTag);
+    this.channel.basicCancel(consumerTag);
+  }
+
+  /**
+   * Returns every delivery that was not committed to Kafka to the queue, so another consumer can take it over right
+   * away instead of after the channel is closed. Committed deliveries that could not be acknowledged cumulatively
+   * are acknowledged, and rejected deliveries rejected, one by one first, then everything else is requeued with a single
+   * {@code basicNack(tag, true, true)}. Call after {@link #ack()}.
+   */
+  synchronized void requeueUnacked() throws IOException {
+    final long highest = this.deliveryTags.highestDelivered();
+    if (highest <= this.deliveryTags.lastAcked() || !this.channel.isOpen()) {
+      return;
+    }
+    for (long deliveryTag : this.deliveryTags.completedAfterAck()) {
+      if (this.rejectedTags.remove(deliveryTag)) {
+        log.trace("requeueUnacked({}) - basicReject({}, false)", this.queue, deliveryTag);
+        this.channel.basicReject(deliveryTag, false);
+        this.metrics.recordRejected(1L);
+      } else {
+        log.trace("requeueUnacked({}) - basicAck({}, false)", this.queue, deliveryTag);
+        this.channel.basicAck(deliveryTag, false);
+      }
+    }
+    log.debug("requeueUnacked({}) - basicNack({}, true, true)", this.queue, highest);
+    this.channel.basicNack(highest, true, true);
+    this.deliveryTags.acked(highest);
+  }
+
+  /**
+   * Releases what the consumer shares with the other tasks of the worker. Call once, after the consumer stopped.
+   */
+  void close() {
+    if (null != this.deduplicator) {
+      this.deduplicator.release();
+    }
+  }
+
+  /**
+   * Starts a new epoch once automatic recovery has reopened the channel. The client calls this before it registers
+   * the consumer again, so every later delivery belongs to the new epoch. Buffered records of earlier epochs are
+   * purged and a partially filled aggregate is dropped, as the broker already requeued their deliveries.
+   */
+  synchronized void recovered() {
+    final int epoch = this.epoch + 1;
+    this.epoch = epoch;
+    this.deliveryTags.recovered();
+    this.rejectedTags.clear();
+    if (null != this.dedupKeys) {
+      this.dedupKeys.clear();
+    }
+    if (null != this.aggregator) {
+      this.aggregator.discard(epoch);
+    }
+    // Also wakes a dispatch thread waiting for room with a record of the old epoch, which then drops it.
+    final int purged = this.records.purge(record -> this.queue.equals(record.sourcePartition().get("queue")) && isStale(record));
+    log.info("recovered({}) - channel recovered, starting epoch {} and purging {} buffered record(s)", this.queue, epoch, purged);
+  }
+
+  /**
+   * @return true if a record of this epoch was delivered on a channel that has since been recovered, so committing it
+   *     must not complete any of the current channel's deliveries.
+   */
+  boolean isStale(int epoch) {
+    return SourceOffset.UNKNOWN_EPOCH != epoch && epoch < this.epoch;
+  }
+
+  /**
+   * Handed to the buffer, so that records converted or waiting for buffer space while the channel recovered are
+   * dropped instead of being added after {@link #recovered()} purged their epoch.
+   */
+  private boolean isStale(SourceRecord record) {
+    return isStale(SourceOffset.epoch(record.sourceOffset()));
   }
 
   @Override
@@ -63,11 +334,106 @@ class ConnectConsumer implements Consumer {
     log.trace("handleRecoverOk({})", s);
   }
 
+  /**
+   * Checks a delivery against the keys already committed to Kafka. A duplicate is completed right away so that it is
+   * acknowledged with the next cumulative ack; any other delivery with a key remembers it until it is committed.
+   */
+  private boolean isDuplicate(Envelope envelope, AMQP.BasicProperties basicProperties) {
+    final String key = this.deduplicator.key(basicProperties);
+    if (null == key) {
+      return false;
+    }
+    if (envelope.isRedeliver() && this.deduplicator.isCommitted(key)) {
+      log.trace("isDuplicate({}) - dropping redelivered deliveryTag {} with key '{}'", this.queue, envelope.getDeliveryTag(), key);
+      this.deliveryTags.complete(envelope.getDeliveryTag());
+      return true;
+    }
+    this.dedupKeys.put(envelope.getDeliveryTag(), key);
+    return false;
+  }
+
+  /**
+   * Decompresses and converts a delivery. The buffer is charged for the decompressed body, the size the record
+   * actually holds.
+   */
+  private ConversionSequencer.Converted sourceRecord(String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] delivered, int epoch) {
+    final byte[] body = this.sourceRecordBuilder.body(basicProperties, delivered);
+    final long start = System.nanoTime();
+    SourceRecord sourceRecord = this.sourceRecordBuilder.decodedSourceRecord(this.queue, consumerTag, envelope, basicProperties, delivered, body, epoch);
+    this.metrics.recordConversion(System.nanoTime() - start);
+    return new ConversionSequencer.Converted(sourceRecord, null == body ? 0 : body.length);
+  }
+
+  /**
+   * Converts a delivery on a conversion thread.
+   *
+   * @return the record, or null if the delivery could not be converted and was rejected.
+   */
+  private ConversionSequencer.Converted convert(String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] delivered, int epoch) {
+    try {
+      return sourceRecord(consumerTag, envelope, basicProperties, delivered, epoch);
+    } catch (RuntimeException e) {
+      if (tolerate(envelope, e)) {
+        return null;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Counts a delivery that could not be converted and, if errors are tolerated, marks it for rejection.
+   *
+   * @return false if the error is not tolerated and the task has to fail.
+   */
+  private boolean tolerate(Envelope envelope, RuntimeException e) {
+    this.metrics.recordError();
+    if (!this.errorsTolerated) {
+      return false;
+    }
+    final long deliveryTag = envelope.getDeliveryTag();
+    log.warn("handleDelivery({}) - Rejecting deliveryTag {} from exchange '{}' with routing key '{}' that could not be converted: {}",
+        this.queue, deliveryTag, envelope.getExchange(), envelope.getRoutingKey(), e.toString());
+    log.debug("handleDelivery({}) - Exception thrown while converting deliveryTag {}", this.queue, deliveryTag, e);
+    if (null != this.dedupKeys) {
+      this.dedupKeys.remove(deliveryTag);
+    }
+    // Before completing the tag, so that ack() never acknowledges it.
+    this.rejectedTags.add(deliveryTag);
+    this.deliveryTags.complete(deliveryTag);
+    return true;
+  }
+
   @Override
   public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] bytes) {
     log.trace("handleDelivery({})", consumerTag);
 
-    SourceRecord sourceRecord = this.sourceRecordBuilder.sourceRecord(consumerTag, envelope, basicProperties, bytes);
-    this.records.add(sourceRecord);
+    final int epoch = this.epoch;
+    this.deliveryTags.delivered(envelope.getDeliveryTag());
+    this.metrics.recordDelivery(null == bytes ? 0 : bytes.length);
+    if (null != this.deduplicator && isDuplicate(envelope, basicProperties)) {
+      return;
+    }
+    try {
+      if (null != this.aggregator) {
+        this.aggregator.add(envelope, basicProperties, bytes, epoch);
+        return;
+      }
+      if (null != this.conversions) {
+        this.conversions.submit(() -> convert(consumerTag, envelope, basicProperties, bytes, epoch));
+        return;
+      }
+      ConversionSequencer.Converted converted = sourceRecord(consumerTag, envelope, basicProperties, bytes, epoch);
+      if (!this.records.put(converted.record, converted.size, this::isStale)) {
+        log.debug("handleDelivery({}) - buffer closed or failed, or channel recovered, dropping deliveryTag {}", consumerTag, envelope.getDeliveryTag());
+      }
+    } catch (InterruptedException e) {
+      log.debug("handleDelivery({}) - interrupted while waiting for buffer space", consumerTag);
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      if (!tolerate(envelope, e)) {
+        log.error("handleDelivery({}) - Exception thrown while converting deliveryTag {}", this.queue, envelope.getDeliveryTag(), e);
+        this.records.fail(e);
+      }
+    }
   }
 }
@@ -0,0 +1,175 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import org.apache.kafka.connect.source.SourceRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Converts the deliveries of one queue on a shared worker pool and hands the records to the {@link SourceRecordBuffer}
+ * in delivery order. Conversions are queued in the order they are submitted; whichever worker finishes a conversion
+ * moves every completed conversion at the head of that queue into the buffer. A conversion that finishes early waits
+ * for the ones before it, so a slow message never lets later ones overtake it.
+ */
+class ConversionSequencer {
+
+  private static final Logger log = LoggerFactory.getLogger(ConversionSequencer.class);
+  private final String queue;
+  private final Executor executor;
+  private final SourceRecordBuffer records;
+  private final Predicate<SourceRecord> stale;
+  private final Semaphore inFlight;
+  private final Queue<Conversion> pending = new ConcurrentLinkedQueue<>();
+  private final ReentrantLock drainLock = new ReentrantLock();
+  private boolean failed;
+
+  /**
+   * @param stale matches records whose delivery belongs to a channel that was recovered while they were converted.
+   */
+  ConversionSequencer(String queue, Executor executor, SourceRecordBuffer records, Predicate<SourceRecord> stale, int maxInFlight) {
+    this.queue = queue;
+    this.executor = executor;
+    this.records = records;
+    this.stale = stale;
+    this.inFlight = new Semaphore(maxInFlight);
+  }
+
+  /**
+   * Schedules a conversion. Must be called from a single thread, the channel's dispatch thread, so that the
+   * submission order is the delivery order. Blocks while the maximum number of conversions is in flight. The
+   * conversion returns null if the delivery could not be converted and was rejected instead.
+   */
+  void submit(Callable<Converted> conversion) throws InterruptedException {
+    this.inFlight.acquire();
+    final Conversion pendingConversion = new Conversion(conversion);
+    this.pending.add(pendingConversion);
+    try {
+      this.executor.execute(() -> {
+        pendingConversion.run();
+        drain();
+      });
+    } catch (RejectedExecutionException e) {
+      pendingConversion.fail(e);
+      drain();
+    }
+  }
+
+  int inFlight() {
+    return this.pending.size();
+  }
+
+  private void drain() {
+    do {
+      if (!this.drainLock.tryLock()) {
+        // The lock holder re-checks the head after releasing the lock, so the completed conversion is not missed.
+        return;
+      }
+      try {
+        Conversion head;
+        while (null != (head = this.pending.peek()) && head.done) {
+          this.pending.poll();
+          this.inFlight.release();
+          if (!hand(head)) {
+            return;
+          }
+        }
+      } finally {
+        this.drainLock.unlock();
+      }
+    } while (headCompleted());
+  }
+
+  private boolean headCompleted() {
+    Conversion head = this.pending.peek();
+    return null != head && head.done;
+  }
+
+  private boolean hand(Conversion conversion) {
+    if (this.failed) {
+      // The task is failing; later deliveries stay unacknowledged and are redelivered after the restart.
+      return true;
+    }
+    if (null != conversion.failure) {
+      log.error("drain({}) - Exception thrown while converting a delivery", this.queue, conversion.failure);
+      this.failed = true;
+      this.records.fail(conversion.failure);
+      return true;
+    }
+    if (null == conversion.converted) {
+      // The delivery could not be converted and was rejected instead.
+      return true;
+    }
+    try {
+      if (!this.records.put(conversion.converted.record, conversion.converted.size, this.stale)) {
+        log.debug("drain({}) - buffer closed or failed, or channel recovered, dropping converted record", this.queue);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      log.debug("drain({}) - interrupted while waiting for buffer space", this.queue);
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * A converted record and the size the buffer is charged for it, the size of the decompressed message body. Only
+   * known once the conversion ran.
+   */
+  static final class Converted {
+    final SourceRecord record;
+    final int size;
+
+    Converted(SourceRecord record, int size) {
+      this.record = record;
+      this.size = size;
+    }
+  }
+
+  private static final class Conversion {
+    private final Callable<Converted> conversion;
+    Converted converted;
+    Throwable failure;
+    volatile boolean done;
+
+    Conversion(Callable<Converted> conversion) {
+      this.conversion = conversion;
+    }
+
+    void run() {
+      try {
+        this.converted = this.conversion.call();
+      } catch (Exception e) {
+        this.failure = e;
+      }
+      this.done = true;
+    }
+
+    void fail(Throwable failure) {
+      this.failure = failure;
+      this.done = true;
+    }
+  }
+}
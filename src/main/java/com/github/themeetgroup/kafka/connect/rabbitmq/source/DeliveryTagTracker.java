@@ -0,0 +1,146 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the delivery tags of a single channel so they can be acknowledged cumulatively with
+ * {@code basicAck(tag, true)}. Kafka may acknowledge records out of order, so the tracker only reports the highest
+ * tag for which every earlier delivery on the channel has been committed.
+ */
+class DeliveryTagTracker {
+
+  private final ConcurrentSkipListMap<Long, Long> pending = new ConcurrentSkipListMap<>();
+  private final AtomicLong highestDelivered = new AtomicLong(0L);
+  private final AtomicInteger completedSinceAck = new AtomicInteger(0);
+  private volatile long lastAcked = 0L;
+
+  /**
+   * Registers a tag as delivered but not yet committed. Must be called before the record is handed to Kafka.
+   */
+  void delivered(long deliveryTag) {
+    pending.put(deliveryTag, System.nanoTime());
+    highestDelivered.accumulateAndGet(deliveryTag, Math::max);
+  }
+
+  /**
+   * Marks a tag as committed to Kafka.
+   *
+   * @return the {@link System#nanoTime()} at which the tag was delivered, or null if it was not pending.
+   */
+  Long complete(long deliveryTag) {
+    Long deliveredNanos = pending.remove(deliveryTag);
+    completedSinceAck.incrementAndGet();
+    return deliveredNanos;
+  }
+
+  /**
+   * Marks every tag from {@code firstDeliveryTag} to {@code lastDeliveryTag} as committed to Kafka.
+   *
+   * @return the {@link System#nanoTime()} at which the earliest pending tag of the range was delivered, or null if
+   *     none of them was pending.
+   */
+  Long complete(long firstDeliveryTag, long lastDeliveryTag) {
+    if (firstDeliveryTag == lastDeliveryTag) {
+      return complete(lastDeliveryTag);
+    }
+    ConcurrentNavigableMap<Long, Long> range = pending.subMap(firstDeliveryTag, true, lastDeliveryTag, true);
+    Map.Entry<Long, Long> first = range.firstEntry();
+    range.clear();
+    completedSinceAck.addAndGet((int) Math.min(Integer.MAX_VALUE, lastDeliveryTag - firstDeliveryTag + 1));
+    return null == first ? null : first.getValue();
+  }
+
+  /**
+   * @return the number of tags completed since the last acknowledgement.
+   */
+  int completedSinceAck() {
+    return completedSinceAck.get();
+  }
+
+  /**
+   * @return the highest tag that can be acknowledged with multiple=true, or 0 if there is nothing new to ack.
+   */
+  synchronized long ackable() {
+    // Read the high water mark before the pending set: delivered() adds to the set before raising it.
+    final long highest = highestDelivered.get();
+    final Long firstPending = pending.ceilingKey(Long.MIN_VALUE);
+    final long ackable = null == firstPending ? highest : Math.min(highest, firstPending - 1);
+    return ackable > lastAcked ? ackable : 0L;
+  }
+
+  /**
+   * Records that every tag up to and including {@code deliveryTag} was acknowledged on the channel.
+   */
+  synchronized void acked(long deliveryTag) {
+    if (deliveryTag > lastAcked) {
+      lastAcked = deliveryTag;
+    }
+    completedSinceAck.set(0);
+  }
+
+  /**
+   * @return the number of deliveries that were not acknowledged on the channel yet, without walking the pending set.
+   */
+  long unacked() {
+    return Math.max(0L, highestDelivered.get() - lastAcked);
+  }
+
+  long highestDelivered() {
+    return highestDelivered.get();
+  }
+
+  long lastAcked() {
+    return lastAcked;
+  }
+
+  /**
+   * @return the tags above the last acknowledgement that were committed but could not be acknowledged cumulatively
+   *     because an earlier tag is still pending.
+   */
+  synchronized List<Long> completedAfterAck() {
+    final long highest = highestDelivered.get();
+    List<Long> completed = new ArrayList<>();
+    for (long tag = lastAcked + 1L; tag <= highest; tag++) {
+      if (!pending.containsKey(tag)) {
+        completed.add(tag);
+      }
+    }
+    return completed;
+  }
+
+  /**
+   * Forgets every pending tag after the channel was recovered. The broker requeued those deliveries when the old
+   * channel closed and the client does not acknowledge tags of the old channel, so the high water mark counts as
+   * acknowledged and tracking continues with the tags of the recovered channel, which the client numbers above it.
+   */
+  synchronized void recovered() {
+    pending.clear();
+    lastAcked = highestDelivered.get();
+    completedSinceAck.set(0);
+  }
+
+  int pendingCount() {
+    return pending.size();
+  }
+}
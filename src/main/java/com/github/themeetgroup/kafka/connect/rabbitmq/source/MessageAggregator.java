@@ -0,0 +1,185 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import com.github.themeetgroup.kafka.connect.rabbitmq.source.data.SourceRecordBuilder;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Packs consecutive deliveries of a queue into a single record. An aggregate is handed to the
+ * {@link SourceRecordBuffer} once it holds the maximum number of messages or bytes, or once its first message has
+ * waited for the linger time. Messages for different topics or Kafka partitions are never packed together.
+ *
+ * The dispatch thread adds messages and hands full aggregates over while holding the lock, blocking if the buffer is
+ * full, so aggregates always reach the buffer in delivery order. The poll thread only flushes expired aggregates with
+ * {@link ReentrantLock#tryLock()} and a non-blocking offer, so it never waits on the dispatch thread.
+ */
+class MessageAggregator {
+  private static final Logger log = LoggerFactory.getLogger(MessageAggregator.class);
+  private final String queue;
+  private final SourceRecordBuilder sourceRecordBuilder;
+  private final SourceRecordBuffer records;
+  private final Predicate<SourceRecord> stale;
+  private final int maxMessages;
+  private final long maxBytes;
+  private final long lingerNanos;
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private List<byte[]> bodies;
+  private String topic;
+  private Integer partition;
+  private Envelope first;
+  private Envelope last;
+  private AMQP.BasicProperties lastBasicProperties;
+  private long bytes;
+  private long startedNanos;
+  private int epoch;
+  /**
+   * Aggregates of an earlier epoch are dropped by whichever thread takes the lock next, see {@link #discard(int)}.
+   */
+  private volatile int discardBefore;
+
+  MessageAggregator(String queue, SourceRecordBuilder sourceRecordBuilder, SourceRecordBuffer records,
+                    Predicate<SourceRecord> stale, RabbitMQSourceConnectorConfig config) {
+    this.queue = queue;
+    this.sourceRecordBuilder = sourceRecordBuilder;
+    this.records = records;
+    this.stale = stale;
+    this.maxMessages = config.aggregationMaxMessages;
+    this.maxBytes = config.aggregationMaxBytes;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(config.aggregationLingerMs);
+  }
+
+  /**
+   * Adds a delivery, handing the aggregate to the buffer first if it has expired, would exceed the byte limit or holds
+   * messages for another topic, partition or channel epoch, and afterwards if it is full. Called from the channel's
+   * dispatch thread.
+   */
+  void add(Envelope envelope, AMQP.BasicProperties basicProperties, byte[] delivered, int epoch) throws InterruptedException {
+    final byte[] body = this.sourceRecordBuilder.body(basicProperties, delivered);
+    final int size = null == body ? 0 : body.length;
+    final String topic = this.sourceRecordBuilder.topic(this.queue, envelope, basicProperties);
+    final Integer partition = this.sourceRecordBuilder.kafkaPartition(this.queue, envelope, basicProperties);
+    this.lock.lockInterruptibly();
+    try {
+      discardStale();
+      final long now = System.nanoTime();
+      if (null != this.bodies && (isExpired(now) || this.bytes + size > this.maxBytes || !topic.equals(this.topic) || !Objects.equals(partition, this.partition) || epoch != this.epoch)) {
+        put();
+      }
+      if (null == this.bodies) {
+        this.bodies = new ArrayList<>(Math.min(this.maxMessages, 1024));
+        this.topic = topic;
+        this.partition = partition;
+        this.epoch = epoch;
+        this.first = envelope;
+        this.startedNanos = now;
+      }
+      this.bodies.add(null == body ? new byte[0] : body);
+      this.last = envelope;
+      this.lastBasicProperties = basicProperties;
+      this.bytes += size;
+      if (this.bodies.size() >= this.maxMessages || this.bytes >= this.maxBytes) {
+        put();
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Offers the aggregate to the buffer if its linger time has passed. Called from the poll thread; does nothing if
+   * the dispatch thread is busy with the aggregate or the buffer is full.
+   */
+  void flushExpired() {
+    if (!this.lock.tryLock()) {
+      return;
+    }
+    try {
+      discardStale();
+      if (null == this.bodies || !isExpired(System.nanoTime())) {
+        return;
+      }
+      if (this.records.offer(build(), (int) Math.min(Integer.MAX_VALUE, this.bytes), this.stale)) {
+        reset();
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Drops an aggregate of deliveries from before {@code epoch} without handing it to the buffer, after the channel
+   * they came from was recovered. Never waits for the lock: the dispatch thread may hold it while it is blocked on a
+   * full buffer. In that case the thread drops the aggregate itself, either when the buffer rejects it as stale or the
+   * next time it takes the lock.
+   */
+  void discard(int epoch) {
+    this.discardBefore = epoch;
+    if (!this.lock.tryLock()) {
+      return;
+    }
+    try {
+      discardStale();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  private void discardStale() {
+    if (null != this.bodies && this.epoch < this.discardBefore) {
+      log.debug("discard({}) - dropping aggregate of deliveryTags {} to {}", this.queue, this.first.getDeliveryTag(), this.last.getDeliveryTag());
+      reset();
+    }
+  }
+
+  private boolean isExpired(long now) {
+    return now - this.startedNanos >= this.lingerNanos;
+  }
+
+  private void put() throws InterruptedException {
+    if (!this.records.put(build(), (int) Math.min(Integer.MAX_VALUE, this.bytes), this.stale)) {
+      log.debug("put({}) - buffer closed or failed, or channel recovered, dropping aggregate of deliveryTags {} to {}", this.queue, this.first.getDeliveryTag(), this.last.getDeliveryTag());
+    }
+    reset();
+  }
+
+  private SourceRecord build() {
+    log.trace("build({}) - aggregating {} messages, deliveryTags {} to {}", this.queue, this.bodies.size(), this.first.getDeliveryTag(), this.last.getDeliveryTag());
+    return this.sourceRecordBuilder.aggregateRecord(this.queue, this.first, this.last, this.lastBasicProperties, this.bodies, this.epoch);
+  }
+
+  private void reset() {
+    this.bodies = null;
+    this.topic = null;
+    this.partition = null;
+    this.first = null;
+    this.last = null;
+    this.lastBasicProperties = null;
+    this.bytes = 0L;
+  }
+}
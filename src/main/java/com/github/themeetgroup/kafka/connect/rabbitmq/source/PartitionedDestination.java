@@ -0,0 +1,85 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import com.github.themeetgroup.kafka.connect.rabbitmq.ConnectionLease;
+import com.rabbitmq.client.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A destination sharded over N queues, such as a super stream or the queues bound to a consistent hash exchange.
+ * Partitions follow the super stream naming convention {@code <destination>-<index>} with indexes starting at 0.
+ */
+public final class PartitionedDestination {
+
+  private static final Logger log = LoggerFactory.getLogger(PartitionedDestination.class);
+  static final int MAX_PARTITIONS = 1024;
+
+  private PartitionedDestination() {
+  }
+
+  public static String partitionName(String destination, int index) {
+    return destination + "-" + index;
+  }
+
+  static List<String> partitionNames(String destination, int count) {
+    List<String> partitions = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      partitions.add(partitionName(destination, i));
+    }
+    return partitions;
+  }
+
+  /**
+   * Probes {@code <destination>-0}, {@code <destination>-1}, ... with passive declares until a partition is missing.
+   */
+  static List<String> discover(ConnectionLease connection, String destination) throws IOException {
+    List<String> partitions = new ArrayList<>();
+    Channel channel = connection.createChannel();
+    for (int i = 0; i < MAX_PARTITIONS; i++) {
+      String partition = partitionName(destination, i);
+      try {
+        channel.queueDeclarePassive(partition);
+      } catch (IOException e) {
+        log.trace("discover() - {} does not exist", partition, e);
+        break;
+      }
+      partitions.add(partition);
+    }
+    log.info("Discovered {} partitions of {}", partitions.size(), destination);
+    return partitions;
+  }
+
+  /**
+   * @return the partition index of {@code queue}, or -1 if it is not a partition of {@code destination}.
+   */
+  public static int partitionIndex(String destination, String queue) {
+    final String prefix = destination + "-";
+    if (!queue.startsWith(prefix)) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(queue.substring(prefix.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
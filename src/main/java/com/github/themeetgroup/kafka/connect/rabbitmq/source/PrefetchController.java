@@ -0,0 +1,103 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the prefetch count of the source channels between {@link RabbitMQSourceConnectorConfig#prefetchMin} and
+ * {@link RabbitMQSourceConnectorConfig#prefetchMax}. The window is halved when the buffer is filling up or records
+ * take longer than the target latency to be committed to Kafka, and grown by a quarter while both are low.
+ */
+class PrefetchController {
+
+  private static final Logger log = LoggerFactory.getLogger(PrefetchController.class);
+  static final double HIGH_OCCUPANCY = 0.8;
+  static final double LOW_OCCUPANCY = 0.5;
+
+  private final SourceRecordBuffer records;
+  private final Collection<ConnectConsumer> consumers;
+  private final int bufferMaxRecords;
+  private final long bufferMaxBytes;
+  private final int min;
+  private final int max;
+  private final long targetLatencyMs;
+  private final long intervalMs;
+  private long lastAdjustMs;
+
+  PrefetchController(RabbitMQSourceConnectorConfig config, SourceRecordBuffer records, Collection<ConnectConsumer> consumers) {
+    this.records = records;
+    this.consumers = consumers;
+    this.bufferMaxRecords = config.bufferMaxRecords;
+    this.bufferMaxBytes = config.bufferMaxBytes;
+    this.min = config.prefetchMin;
+    this.max = config.prefetchMax;
+    this.targetLatencyMs = config.prefetchTargetLatencyMs;
+    this.intervalMs = config.prefetchAdjustIntervalMs;
+    this.lastAdjustMs = System.currentTimeMillis();
+  }
+
+  /**
+   * @return the configured prefetch count clamped to the adaptive bounds. 0, unlimited, starts at the upper bound.
+   */
+  int initial(int prefetchCount) {
+    if (prefetchCount <= 0) {
+      return this.max;
+    }
+    return Math.max(this.min, Math.min(this.max, prefetchCount));
+  }
+
+  /**
+   * Re-evaluates the prefetch count of every channel once per interval. Called from the poll thread.
+   */
+  void maybeAdjust() throws IOException {
+    long now = System.currentTimeMillis();
+    if (now - this.lastAdjustMs < this.intervalMs) {
+      return;
+    }
+    this.lastAdjustMs = now;
+
+    double occupancy = Math.max(
+        (double) this.records.size() / this.bufferMaxRecords,
+        (double) this.records.bytes() / this.bufferMaxBytes
+    );
+    for (ConnectConsumer consumer : this.consumers) {
+      long latencyMs = TimeUnit.NANOSECONDS.toMillis(consumer.commitLatencyNanos());
+      int current = consumer.prefetchCount();
+      int next = nextPrefetch(current, occupancy, latencyMs, this.targetLatencyMs, this.min, this.max);
+      if (next != current) {
+        log.debug("maybeAdjust() - queue = '{}' occupancy = {} latencyMs = {}, prefetch {} -> {}",
+            consumer.queue(), occupancy, latencyMs, current, next);
+        consumer.qos(next);
+      }
+    }
+  }
+
+  static int nextPrefetch(int current, double occupancy, long latencyMs, long targetLatencyMs, int min, int max) {
+    if (occupancy >= HIGH_OCCUPANCY || latencyMs > targetLatencyMs) {
+      return Math.max(min, current / 2);
+    }
+    if (occupancy < LOW_OCCUPANCY && latencyMs < targetLatencyMs / 2) {
+      return Math.min(max, current + Math.max(1, current / 4));
+    }
+    return current;
+  }
+}
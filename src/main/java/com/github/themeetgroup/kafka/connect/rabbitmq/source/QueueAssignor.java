@@ -0,0 +1,111 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spreads the configured queues over the source tasks so that every queue is consumed by exactly one task.
+ */
+class QueueAssignor {
+
+  private QueueAssignor() {
+  }
+
+  /**
+   * Deals the queues out to the tasks in configuration order.
+   */
+  static List<List<String>> roundRobin(List<String> queues, int maxTasks) {
+    List<List<String>> assignments = emptyAssignments(queues.size(), maxTasks);
+    for (int i = 0; i < queues.size(); i++) {
+      assignments.get(i % assignments.size()).add(queues.get(i));
+    }
+    return assignments;
+  }
+
+  /**
+   * Assigns the deepest queues first, each to the task with the least backlog so far. Every queue weighs at least
+   * one message so that empty queues are still spread evenly.
+   */
+  static List<List<String>> byDepth(List<String> queues, Map<String, Long> depths, int maxTasks) {
+    List<List<String>> assignments = emptyAssignments(queues.size(), maxTasks);
+    long[] load = new long[assignments.size()];
+
+    List<String> ordered = new ArrayList<>(queues);
+    Collections.sort(ordered, Comparator.comparingLong((String queue) -> weight(depths, queue)).reversed());
+
+    for (String queue : ordered) {
+      int target = 0;
+      for (int task = 1; task < load.length; task++) {
+        if (load[task] < load[target]) {
+          target = task;
+        }
+      }
+      assignments.get(target).add(queue);
+      load[target] += weight(depths, queue);
+    }
+    return assignments;
+  }
+
+  /**
+   * @return the backlog of the most loaded task.
+   */
+  static long maxLoad(List<List<String>> assignments, Map<String, Long> depths) {
+    long max = 0L;
+    for (List<String> queues : assignments) {
+      long load = 0L;
+      for (String queue : queues) {
+        load += weight(depths, queue);
+      }
+      max = Math.max(max, load);
+    }
+    return max;
+  }
+
+  /**
+   * @return the backlog of the most loaded task divided by the average backlog per task, 1.0 for a perfect balance.
+   */
+  static double skew(List<List<String>> assignments, Map<String, Long> depths) {
+    long total = 0L;
+    for (List<String> queues : assignments) {
+      for (String queue : queues) {
+        total += weight(depths, queue);
+      }
+    }
+    if (total == 0L) {
+      return 1.0;
+    }
+    return (double) maxLoad(assignments, depths) * assignments.size() / total;
+  }
+
+  private static long weight(Map<String, Long> depths, String queue) {
+    Long depth = depths.get(queue);
+    return null == depth ? 1L : Math.max(1L, depth + 1L);
+  }
+
+  private static List<List<String>> emptyAssignments(int queueCount, int maxTasks) {
+    int taskCount = Math.max(1, Math.min(queueCount, maxTasks));
+    List<List<String>> assignments = new ArrayList<>(taskCount);
+    for (int i = 0; i < taskCount; i++) {
+      assignments.add(new ArrayList<>());
+    }
+    return assignments;
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads the number of ready messages and consumers of the connector's queues with passive declares on a single
+ * control channel, and publishes them as {@code kafka.connect.rabbitmq:type=source-connector-metrics}.
+ */
+class QueueDepthMonitor implements AutoCloseable {
+  static final String CONNECTOR_GROUP = "source-connector-metrics";
+  private static final Logger log = LoggerFactory.getLogger(QueueDepthMonitor.class);
+
+  interface ChannelFactory {
+    Channel createChannel() throws IOException;
+  }
+
+  private final List<String> queues;
+  private final ChannelFactory channels;
+  private final Metrics metrics;
+  private final Map<String, String> tags;
+  private final Map<String, Long> depths = new ConcurrentHashMap<>();
+  private final Map<String, Long> consumers = new ConcurrentHashMap<>();
+  private Channel channel;
+
+  QueueDepthMonitor(String connector, List<String> queues, ChannelFactory channels, Metrics metrics) {
+    this.queues = queues;
+    this.channels = channels;
+    this.metrics = metrics;
+    this.tags = Collections.singletonMap("connector", connector);
+
+    this.metrics.addMetric(
+        this.metrics.metricName("queue-depth-total", CONNECTOR_GROUP, "Number of ready messages over all queues.", this.tags),
+        (Measurable) (config, now) -> {
+          long total = 0L;
+          for (Long depth : this.depths.values()) {
+            total += depth;
+          }
+          return total;
+        }
+    );
+    for (String queue : queues) {
+      Map<String, String> queueTags = new LinkedHashMap<>(this.tags);
+      queueTags.put("queue", queue);
+      this.metrics.addMetric(
+          this.metrics.metricName("queue-depth", CONNECTOR_GROUP, "Number of ready messages in the queue.", queueTags),
+          (Measurable) (config, now) -> this.depths.getOrDefault(queue, 0L)
+      );
+      this.metrics.addMetric(
+          this.metrics.metricName("queue-consumers", CONNECTOR_GROUP, "Number of consumers of the queue.", queueTags),
+          (Measurable) (config, now) -> this.consumers.getOrDefault(queue, 0L)
+      );
+    }
+  }
+
+  /**
+   * Publishes how unevenly the backlog is spread over the tasks.
+   */
+  void skew(Measurable skew) {
+    this.metrics.addMetric(
+        this.metrics.metricName("task-backlog-skew", CONNECTOR_GROUP, "Backlog of the most loaded task divided by the average backlog per task.", this.tags),
+        skew
+    );
+  }
+
+  /**
+   * Reads the current depth of every queue. Queues that can not be inspected keep their last known depth.
+   *
+   * @return the depth of every queue that was read so far.
+   */
+  synchronized Map<String, Long> poll() throws IOException {
+    for (String queue : this.queues) {
+      if (null == this.channel || !this.channel.isOpen()) {
+        this.channel = this.channels.createChannel();
+      }
+      try {
+        AMQP.Queue.DeclareOk declareOk = this.channel.queueDeclarePassive(queue);
+        this.depths.put(queue, (long) declareOk.getMessageCount());
+        this.consumers.put(queue, (long) declareOk.getConsumerCount());
+      } catch (IOException e) {
+        // A failed passive declare closes the channel; the next queue opens a new one.
+        log.warn("poll() - Could not inspect queue '{}'.", queue);
+        this.channel = null;
+      }
+    }
+    log.trace("poll() - depths {}, consumers {}", this.depths, this.consumers);
+    return depths();
+  }
+
+  /**
+   * @return the depths read by the last {@link #poll()}.
+   */
+  Map<String, Long> depths() {
+    return new HashMap<>(this.depths);
+  }
+
+  @Override
+  public void close() {
+    this.metrics.close();
+  }
+}
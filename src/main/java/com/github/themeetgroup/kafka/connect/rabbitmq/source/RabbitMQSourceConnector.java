@@ -18,17 +18,44 @@ package com.github.themeetgroup.kafka.connect.rabbitmq.source;
 import com.github.jcustenborder.kafka.connect.utils.VersionUtil;
 import com.github.jcustenborder.kafka.connect.utils.config.Description;
 import com.github.jcustenborder.kafka.connect.utils.config.TaskConfigs;
+import com.github.themeetgroup.kafka.connect.rabbitmq.ConnectionLease;
+import com.github.themeetgroup.kafka.connect.rabbitmq.SharedConnectionManager;
+import com.rabbitmq.client.Channel;
 import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.MetricsReporter;
+import org.apache.kafka.common.utils.SystemTime;
 import org.apache.kafka.connect.connector.Task;
+import org.apache.kafka.connect.errors.ConnectException;
 import org.apache.kafka.connect.source.SourceConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Description("Connector is used to read from a RabbitMQ Queue or Topic.")
 public class RabbitMQSourceConnector extends SourceConnector {
 
+  private static final Logger log = LoggerFactory.getLogger(RabbitMQSourceConnector.class);
   private Map<String, String> settings;
+  private RabbitMQSourceConnectorConfig config;
+  private ConnectionLease monitorConnection;
+  private QueueDepthMonitor monitor;
+  private ScheduledExecutorService monitorExecutor;
+  private volatile List<List<String>> assignments;
+  private long nextRebalanceMs;
 
   @Override
   public String version() {
@@ -37,7 +64,93 @@ public class RabbitMQSourceConnector extends SourceConnector {
 
   @Override
   public void start(Map<String, String> settings) {
+    this.config = new RabbitMQSourceConnectorConfig(settings);
     this.settings = settings;
+    if (this.config.queueDepthIntervalMs > 0 && null == this.config.partitionedDestination) {
+      startMonitor();
+    }
+  }
+
+  private void startMonitor() {
+    try {
+      this.monitorConnection = SharedConnectionManager.instance().acquire(this.config, SharedConnectionManager.Role.ADMIN, 1);
+    } catch (IOException | TimeoutException e) {
+      throw new ConnectException("Could not open the queue depth monitoring connection", e);
+    }
+    Metrics metrics = new Metrics(
+        new MetricConfig(),
+        Collections.<MetricsReporter>singletonList(new JmxReporter(SourceTaskMetrics.JMX_PREFIX)),
+        new SystemTime()
+    );
+    monitor(new QueueDepthMonitor(
+        this.settings.getOrDefault(RabbitMQSourceConnectorConfig.CONNECTOR_NAME_CONF, "rabbitmq-source"),
+        this.config.queues,
+        this.monitorConnection::createChannel,
+        metrics
+    ));
+    this.monitorExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "rabbitmq-queue-depth-monitor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    log.info("Monitoring the depth of {} queue(s) every {} ms", this.config.queues.size(), this.config.queueDepthIntervalMs);
+    this.monitorExecutor.scheduleWithFixedDelay(
+        this::checkQueueDepths, 0L, this.config.queueDepthIntervalMs, TimeUnit.MILLISECONDS
+    );
+  }
+
+  void monitor(QueueDepthMonitor monitor) {
+    this.monitor = monitor;
+    monitor.skew((metricConfig, now) -> {
+      List<List<String>> assignments = this.assignments;
+      return null == assignments ? 1.0 : QueueAssignor.skew(assignments, monitor.depths());
+    });
+  }
+
+  void checkQueueDepths() {
+    checkQueueDepths(System.currentTimeMillis());
+  }
+
+  /**
+   * Reads the queue depths and asks the framework for new task configurations when the backlog has become uneven
+   * enough that a new queue assignment would lighten the most loaded task, at most once per
+   * {@link RabbitMQSourceConnectorConfig#queueDepthRebalanceCooldownMs}.
+   */
+  void checkQueueDepths(long now) {
+    final Map<String, Long> depths;
+    try {
+      depths = this.monitor.poll();
+    } catch (IOException | RuntimeException e) {
+      log.warn("checkQueueDepths() - Could not read queue depths.", e);
+      return;
+    }
+    if (!RabbitMQSourceConnectorConfig.QUEUE_ASSIGNMENT_QUEUE_DEPTH.equals(this.config.queueAssignment)) {
+      return;
+    }
+    if (now < this.nextRebalanceMs) {
+      return;
+    }
+    if (rebalanceNeeded(this.assignments, depths)) {
+      log.info("checkQueueDepths() - Backlog skew {} exceeds {}, requesting task reconfiguration",
+          QueueAssignor.skew(this.assignments, depths), this.config.queueDepthRebalanceSkew);
+      // Checked again once taskConfigs() has produced the new assignment.
+      this.assignments = null;
+      this.nextRebalanceMs = now + this.config.queueDepthRebalanceCooldownMs;
+      this.context.requestTaskReconfiguration();
+    }
+  }
+
+  boolean rebalanceNeeded(List<List<String>> current, Map<String, Long> depths) {
+    if (null == current || current.size() < 2) {
+      return false;
+    }
+    if (QueueAssignor.skew(current, depths) <= this.config.queueDepthRebalanceSkew) {
+      return false;
+    }
+    List<List<String>> proposed = QueueAssignor.byDepth(this.config.queues, depths, current.size());
+    long currentLoad = QueueAssignor.maxLoad(current, depths);
+    long proposedLoad = QueueAssignor.maxLoad(proposed, depths);
+    return proposedLoad < currentLoad && proposedLoad <= currentLoad * (1.0 - this.config.queueDepthRebalanceMinImprovement);
   }
 
   @Override
@@ -47,11 +160,127 @@ public class RabbitMQSourceConnector extends SourceConnector {
 
   @Override
   public List<Map<String, String>> taskConfigs(int maxTasks) {
-    return TaskConfigs.multiple(this.settings, maxTasks);
+    final List<List<String>> assignments;
+    if (null != this.config.partitionedDestination) {
+      assignments = QueueAssignor.roundRobin(partitions(), maxTasks);
+    } else {
+      String queueAssignment = this.config.queueAssignment;
+      if (this.config.streamQueues && RabbitMQSourceConnectorConfig.QUEUE_ASSIGNMENT_SHARED.equals(queueAssignment)) {
+        // Stream consumers do not compete for messages, every task would read and produce the whole stream.
+        log.info("taskConfigs() - Assigning each stream to a single task");
+        queueAssignment = RabbitMQSourceConnectorConfig.QUEUE_ASSIGNMENT_ROUND_ROBIN;
+      }
+      switch (queueAssignment) {
+        case RabbitMQSourceConnectorConfig.QUEUE_ASSIGNMENT_ROUND_ROBIN:
+          assignments = QueueAssignor.roundRobin(this.config.queues, maxTasks);
+          break;
+        case RabbitMQSourceConnectorConfig.QUEUE_ASSIGNMENT_QUEUE_DEPTH:
+          assignments = QueueAssignor.byDepth(this.config.queues, queueDepths(), maxTasks);
+          break;
+        default:
+          return withTaskIds(TaskConfigs.multiple(this.settings, maxTasks));
+      }
+    }
+
+    List<Map<String, String>> taskConfigs = new ArrayList<>(assignments.size());
+    for (List<String> queues : assignments) {
+      log.info("taskConfigs() - Assigning queues {} to task {}", queues, taskConfigs.size());
+      Map<String, String> taskSettings = new LinkedHashMap<>(this.settings);
+      taskSettings.put(RabbitMQSourceConnectorConfig.QUEUE_CONF, String.join(",", queues));
+      taskConfigs.add(taskSettings);
+    }
+    this.assignments = assignments;
+    return withTaskIds(taskConfigs);
+  }
+
+  /**
+   * Numbers the tasks so that their metrics get distinct names.
+   */
+  static List<Map<String, String>> withTaskIds(List<Map<String, String>> taskConfigs) {
+    List<Map<String, String>> result = new ArrayList<>(taskConfigs.size());
+    for (Map<String, String> taskConfig : taskConfigs) {
+      Map<String, String> taskSettings = new LinkedHashMap<>(taskConfig);
+      taskSettings.put(RabbitMQSourceConnectorConfig.TASK_ID_CONF, Integer.toString(result.size()));
+      result.add(taskSettings);
+    }
+    return result;
+  }
+
+  /**
+   * Lists the partitions of the partitioned destination, either from the configured count or by probing the broker.
+   */
+  List<String> partitions() {
+    if (this.config.partitionCount > 0) {
+      return PartitionedDestination.partitionNames(this.config.partitionedDestination, this.config.partitionCount);
+    }
+    ConnectionLease connection = null;
+    try {
+      connection = SharedConnectionManager.instance().acquire(this.config, SharedConnectionManager.Role.ADMIN, 1);
+      List<String> partitions = PartitionedDestination.discover(connection, this.config.partitionedDestination);
+      if (partitions.isEmpty()) {
+        log.warn("partitions() - No partitions found for {}", this.config.partitionedDestination);
+      }
+      return partitions;
+    } catch (IOException | TimeoutException e) {
+      throw new ConnectException("Could not discover the partitions of " + this.config.partitionedDestination, e);
+    } finally {
+      if (null != connection) {
+        connection.close();
+      }
+    }
+  }
+
+  /**
+   * Reads the number of ready messages of every configured queue with a passive declare. Queues that can not be
+   * inspected, for example because no task has declared them yet, are reported as empty.
+   */
+  Map<String, Long> queueDepths() {
+    if (null != this.monitor) {
+      Map<String, Long> depths = this.monitor.depths();
+      if (!depths.isEmpty()) {
+        return depths;
+      }
+    }
+    Map<String, Long> depths = new HashMap<>();
+    ConnectionLease connection = null;
+    try {
+      connection = SharedConnectionManager.instance().acquire(this.config, SharedConnectionManager.Role.ADMIN, 1);
+      Channel channel = connection.createChannel();
+      for (String queue : this.config.queues) {
+        try {
+          depths.put(queue, (long) channel.queueDeclarePassive(queue).getMessageCount());
+        } catch (IOException e) {
+          log.warn("queueDepths() - Could not inspect queue '{}', assuming it is empty.", queue);
+          // a failed passive declare closes the channel
+          channel = connection.createChannel();
+        }
+      }
+    } catch (IOException | TimeoutException e) {
+      log.warn("queueDepths() - Could not read queue depths, falling back to equal weights.", e);
+    } finally {
+      if (null != connection) {
+        connection.close();
+      }
+    }
+    log.debug("queueDepths() - {}", depths);
+    return depths;
   }
 
   @Override
-  public void stop() { }
+  public void stop() {
+    if (null != this.monitorExecutor) {
+      this.monitorExecutor.shutdownNow();
+      this.monitorExecutor = null;
+    }
+    if (null != this.monitor) {
+      this.monitor.close();
+      this.monitor = null;
+    }
+    if (null != this.monitorConnection) {
+      this.monitorConnection.close();
+      this.monitorConnection = null;
+    }
+  }
 
   @Override
   public ConfigDef config() {
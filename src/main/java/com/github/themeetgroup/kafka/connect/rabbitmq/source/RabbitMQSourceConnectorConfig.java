@@ -16,16 +16,39 @@
 package com.github.themeetgroup.kafka.connect.rabbitmq.source;
 
 import com.github.themeetgroup.kafka.connect.rabbitmq.CommonRabbitMQConnectorConfig;
+import com.github.themeetgroup.kafka.connect.rabbitmq.source.data.KeyPartitioner;
+import com.github.themeetgroup.kafka.connect.rabbitmq.source.data.TopicTemplate;
 import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.common.config.ConfigException;
 
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class RabbitMQSourceConnectorConfig extends CommonRabbitMQConnectorConfig {
 
+  /**
+   * Name of the connector, set by the Connect framework.
+   */
+  public static final String CONNECTOR_NAME_CONF = "name";
+
+  /**
+   * Index of the task, added to the task settings by {@link RabbitMQSourceConnector#taskConfigs(int)}. Not part of the
+   * documented configuration.
+   */
+  public static final String TASK_ID_CONF = "rabbitmq.task.id";
+
   public static final String TOPIC_CONF = "kafka.topic";
   public static final String TOPIC_DOC = "Kafka topic to write the messages to.";
 
+  public static final String TOPIC_TEMPLATE_CONF = "kafka.topic.template";
+  public static final String TOPIC_TEMPLATE_DOC = "Template of the Kafka topic of each message, for example " +
+      "`rabbitmq.${routingKey}`. Supports ${routingKey}, ${exchange}, ${queue} and ${header:<name>}. Characters that " +
+      "are not legal in a topic name are replaced with `_`. Messages without a value for one of the variables are " +
+      "written to " + TOPIC_CONF + ". Empty writes every message to " + TOPIC_CONF + ".";
+
   public static final String QUEUE_CONF = "rabbitmq.queue";
   public static final String QUEUE_DOC = "rabbitmq.queue";
 
@@ -41,11 +64,109 @@ public class RabbitMQSourceConnectorConfig extends CommonRabbitMQConnectorConfig
 
   public static final String PREFETCH_GLOBAL_CONF = "rabbitmq.prefetch.global";
   public static final String PREFETCH_GLOBAL_DOC = "True if the settings should be applied to the entire channel rather than each consumer. " +
+      "Not supported by stream and quorum queues. " +
       "See `Channel.basicQos(int, boolean) <https://www.rabbitmq.com/releases/rabbitmq-java-client/current-javadoc/com/rabbitmq/client/Channel.html#basicQos-int-boolean->`_";
 
+  public static final String PREFETCH_ADAPTIVE_CONF = "rabbitmq.prefetch.adaptive";
+  public static final String PREFETCH_ADAPTIVE_DOC = "Adjust the prefetch count of every channel at runtime. The prefetch " +
+      "count is lowered while the in-memory buffer fills up or the time between a delivery and its commit to Kafka " +
+      "exceeds rabbitmq.prefetch.target.latency.ms, and raised while both are comfortably low. The " +
+      "limit is applied to the whole channel, see " + PREFETCH_GLOBAL_CONF + ". Stream and quorum queues do not " +
+      "support channel wide limits, so adaptive prefetch can only be used with classic queues.";
+
+  public static final String PREFETCH_MIN_CONF = "rabbitmq.prefetch.min";
+  public static final String PREFETCH_MIN_DOC = "Lower bound for the adaptive prefetch count.";
+
+  public static final String PREFETCH_MAX_CONF = "rabbitmq.prefetch.max";
+  public static final String PREFETCH_MAX_DOC = "Upper bound for the adaptive prefetch count.";
+
+  public static final String PREFETCH_TARGET_LATENCY_CONF = "rabbitmq.prefetch.target.latency.ms";
+  public static final String PREFETCH_TARGET_LATENCY_DOC = "Delivery to commit latency, in milliseconds, that the " +
+      "adaptive prefetch count aims to stay under.";
+
+  public static final String PREFETCH_ADJUST_INTERVAL_CONF = "rabbitmq.prefetch.adjust.interval.ms";
+  public static final String PREFETCH_ADJUST_INTERVAL_DOC = "How often, in milliseconds, the adaptive prefetch count " +
+      "is re-evaluated.";
+
+  public static final String QUEUE_PREFETCH_COUNT_CONF = "rabbitmq.queue.prefetch.count";
+  public static final String QUEUE_PREFETCH_COUNT_DOC = "Per queue override of " + PREFETCH_COUNT_CONF + ". Set with " +
+      "`queue1`:`count1`,`queue2`:`count2`. Queues that are not listed use " + PREFETCH_COUNT_CONF + ".";
+
+  public static final String QUEUE_ASSIGNMENT_SHARED = "shared";
+  public static final String QUEUE_ASSIGNMENT_ROUND_ROBIN = "round_robin";
+  public static final String QUEUE_ASSIGNMENT_QUEUE_DEPTH = "queue_depth";
+  public static final String QUEUE_ASSIGNMENT_CONF = "rabbitmq.queue.assignment";
+  public static final String QUEUE_ASSIGNMENT_DOC = "How the queues in " + QUEUE_CONF + " are distributed over the tasks. " +
+      "`" + QUEUE_ASSIGNMENT_SHARED + "` gives every task every queue, so tasks compete for messages on each queue. " +
+      "Consumers of a stream do not compete, so with stream queues `" + QUEUE_ASSIGNMENT_SHARED + "` assigns each " +
+      "stream to one task like `" + QUEUE_ASSIGNMENT_ROUND_ROBIN + "`. " +
+      "`" + QUEUE_ASSIGNMENT_ROUND_ROBIN + "` assigns each queue to exactly one task in configuration order. " +
+      "`" + QUEUE_ASSIGNMENT_QUEUE_DEPTH + "` assigns each queue to exactly one task, balancing the number of ready " +
+      "messages per task.";
+
+  public static final String QUEUE_DEPTH_INTERVAL_MS_CONF = "rabbitmq.queue.depth.interval.ms";
+  public static final String QUEUE_DEPTH_INTERVAL_MS_DOC = "Interval in milliseconds at which the connector reads the " +
+      "number of ready messages and consumers of every queue and publishes them as metrics. With " +
+      QUEUE_ASSIGNMENT_CONF + "=`" + QUEUE_ASSIGNMENT_QUEUE_DEPTH + "`, the tasks are reconfigured when the backlog " +
+      "becomes too uneven. 0 disables monitoring.";
+
+  public static final String QUEUE_DEPTH_REBALANCE_SKEW_CONF = "rabbitmq.queue.depth.rebalance.skew";
+  public static final String QUEUE_DEPTH_REBALANCE_SKEW_DOC = "Reassigns the queues when the backlog of the most " +
+      "loaded task exceeds this multiple of the average backlog per task, and a new assignment would reduce it.";
+
+  public static final String QUEUE_DEPTH_REBALANCE_COOLDOWN_MS_CONF = "rabbitmq.queue.depth.rebalance.cooldown.ms";
+  public static final String QUEUE_DEPTH_REBALANCE_COOLDOWN_MS_DOC = "Minimum time in milliseconds between two " +
+      "reassignments of the queues. Every reassignment restarts the tasks, so backlogs that swing back and forth " +
+      "must not keep the connector rebalancing.";
+
+  public static final String QUEUE_DEPTH_REBALANCE_MIN_IMPROVEMENT_CONF = "rabbitmq.queue.depth.rebalance.min.improvement";
+  public static final String QUEUE_DEPTH_REBALANCE_MIN_IMPROVEMENT_DOC = "Fraction by which a new assignment must " +
+      "reduce the backlog of the most loaded task before the queues are reassigned. 0.2 requires a reduction of at " +
+      "least 20%.";
+
+  public static final String QUEUE_TYPE_CLASSIC = "classic";
+  public static final String QUEUE_TYPE_STREAM = "stream";
+  public static final String QUEUE_TYPE_CONF = "rabbitmq.queue.type";
+  public static final String QUEUE_TYPE_DOC = "Type of the queues in " + QUEUE_CONF + ". `" + QUEUE_TYPE_STREAM + "` " +
+      "declares and reads the queues as RabbitMQ streams. The stream offset of every message is stored as the source " +
+      "offset, so a restarted task resumes after the last offset committed to Kafka. Streams require " +
+      PREFETCH_COUNT_CONF + " to be greater than 0.";
+
+  public static final String STREAM_OFFSET_CONF = "rabbitmq.stream.offset";
+  public static final String STREAM_OFFSET_DOC = "Where to start reading a stream that has no committed source offset. " +
+      "One of `first`, `last`, `next`, a numeric stream offset, or `timestamp:` followed by epoch milliseconds. " +
+      "Only used when " + QUEUE_TYPE_CONF + " is `" + QUEUE_TYPE_STREAM + "`.";
+
+  public static final String PARTITIONED_DESTINATION_CONF = "rabbitmq.partitioned.destination";
+  public static final String PARTITIONED_DESTINATION_DOC = "Name of a destination sharded over several queues, such as a " +
+      "super stream or the queues of a consistent hash exchange. Its partitions are the queues named " +
+      "`<destination>-0` to `<destination>-N`. Each partition is consumed by exactly one task and written to the Kafka " +
+      "partition with the same index, wrapping around the partitions of the topic, which preserves per partition " +
+      "ordering. Replaces " + QUEUE_CONF + ". The partition queues must already exist.";
+
+  public static final String PARTITION_COUNT_CONF = "rabbitmq.partitions";
+  public static final String PARTITION_COUNT_DOC = "Number of partitions of " + PARTITIONED_DESTINATION_CONF + ". " +
+      "0 discovers them by looking up `<destination>-0`, `<destination>-1`, ... until one is missing.";
+
+  public static final String KAFKA_PARTITION_COUNT_CONF = "kafka.partition.count";
+  public static final String KAFKA_PARTITION_COUNT_DOC = "Number of partitions of " + TOPIC_CONF + ". When set, " +
+      "computed Kafka partitions are taken modulo this value. Required by " + PARTITIONED_DESTINATION_CONF + " and " +
+      "key partitioning.";
+
+  public static final String PARTITION_KEY_CONF = "kafka.partition.key";
+  public static final String PARTITION_KEY_DOC = "Field whose murmur2 hash, modulo " + KAFKA_PARTITION_COUNT_CONF + ", " +
+      "selects the Kafka partition of each message, so that all messages of an entity stay in order on one " +
+      "partition. One of routingKey, correlationId, messageId or header:<name>. Messages without the field are left " +
+      "to the producer's partitioner. Requires " + KAFKA_PARTITION_COUNT_CONF + " and can not be combined with " +
+      PARTITIONED_DESTINATION_CONF + ". Empty disables key partitioning.";
+
   public static final String MESSAGE_CONVERTER_CLASSNAME_CONF = "message.converter";
   public static final String MESSAGE_CONVERTER_CLASSNAME_DOC = "Converter to compose the Kafka message. Optional, defaults to " +
-      "com.github.themeetgroup.kafka.connect.rabbitmq.source.data.MessageConverter";
+      "com.github.themeetgroup.kafka.connect.rabbitmq.source.data.MessageConverter. " +
+      "com.github.themeetgroup.kafka.connect.rabbitmq.source.data.LazyMessageConverter produces the same records but only " +
+      "builds the envelope and basicProperties fields when they are read. " +
+      "com.github.themeetgroup.kafka.connect.rabbitmq.source.data.AvroSourceMessageConverter decodes schema registry " +
+      "framed Avro bodies; it is configured with message.converter.schema.registry.url.";
 
   public static final String EXCHANGE_CONF = "rabbitmq.exchange";
   public static final String EXCHANGE_CONF_DOC = "rabbitmq.exchange";
@@ -56,43 +177,354 @@ public class RabbitMQSourceConnectorConfig extends CommonRabbitMQConnectorConfig
   public static final String QUEUE_TTL_CONF = "rabbitmq.queue.ttl";
   public static final String QUEUE_TTL_DOC = "rabbitmq.queue.ttl";
 
+  public static final String BUFFER_MAX_RECORDS_CONF = "buffer.max.records";
+  public static final String BUFFER_MAX_RECORDS_DOC = "Maximum number of converted records held in memory between the " +
+      "RabbitMQ consumers and the Kafka producer. Consumers block once this limit is reached.";
+
+  public static final String BUFFER_MAX_BYTES_CONF = "buffer.max.bytes";
+  public static final String BUFFER_MAX_BYTES_DOC = "Maximum total size, in bytes, of the message bodies held in memory " +
+      "between the RabbitMQ consumers and the Kafka producer. Consumers block once this limit is reached.";
+
+  public static final String ACK_BATCH_SIZE_CONF = "rabbitmq.ack.batch.size";
+  public static final String ACK_BATCH_SIZE_DOC = "Number of records committed to Kafka after which the highest contiguous " +
+      "delivery tag is acknowledged with a single cumulative basicAck. 1 acknowledges as soon as possible. " +
+      "See `Channel.basicAck(long, boolean) <https://www.rabbitmq.com/releases/rabbitmq-java-client/current-javadoc/com/rabbitmq/client/Channel.html#basicAck-long-boolean->`_";
+
+  public static final String ACK_BATCH_INTERVAL_CONF = "rabbitmq.ack.batch.interval.ms";
+  public static final String ACK_BATCH_INTERVAL_DOC = "Maximum time in milliseconds a committed record waits before its " +
+      "delivery tag is acknowledged, regardless of " + ACK_BATCH_SIZE_CONF + ".";
+
+  public static final String DRAIN_TIMEOUT_CONF = "rabbitmq.stop.drain.timeout.ms";
+  public static final String DRAIN_TIMEOUT_DOC = "Maximum time in milliseconds a stopping task waits for the " +
+      "records it already handed to Kafka to be committed, so that they are acknowledged instead of redelivered. " +
+      "Buffered and uncommitted messages are returned to their queues when the task stops. The wait happens on the " +
+      "task's own thread after the worker asked it to stop, so the tasks of a worker drain in parallel. Should stay " +
+      "below the worker's task.shutdown.graceful.timeout.ms.";
+
+  public static final String CONVERSION_THREADS_CONF = "conversion.threads";
+  public static final String CONVERSION_THREADS_DOC = "Number of threads per task that convert deliveries to records. " +
+      "0 converts on the AMQP consumer dispatch thread. With more threads, deliveries of a queue are converted in " +
+      "parallel and handed to Kafka in delivery order. At most " + BUFFER_MAX_RECORDS_CONF + " deliveries per queue " +
+      "are being converted at a time.";
+
+  public static final String POLL_MAX_RECORDS_CONF = "poll.max.records";
+  public static final String POLL_MAX_RECORDS_DOC = "Maximum number of records returned by a single poll. Must not " +
+      "exceed " + BUFFER_MAX_RECORDS_CONF + ".";
+
+  public static final String POLL_MAX_BYTES_CONF = "poll.max.bytes";
+  public static final String POLL_MAX_BYTES_DOC = "Maximum total size, in bytes, of the message bodies returned by a " +
+      "single poll. A single larger message is still returned on its own. Must not exceed " + BUFFER_MAX_BYTES_CONF + ".";
+
+  public static final String POLL_LINGER_MS_CONF = "poll.linger.ms";
+  public static final String POLL_LINGER_MS_DOC = "Time in milliseconds a poll waits, after the first record is " +
+      "available, for " + POLL_MAX_RECORDS_CONF + " or " + POLL_MAX_BYTES_CONF + " to be reached. Larger batches make " +
+      "the Kafka producer more efficient at the cost of at most this much added latency. The wait also ends as soon as " +
+      "the buffer is full. 0 returns whatever is buffered.";
+
+  public static final String DEDUP_ENABLED_CONF = "dedup.enabled";
+  public static final String DEDUP_ENABLED_DOC = "Drop redelivered messages whose key was already committed to Kafka, " +
+      "acknowledging them without producing them again. This avoids rewriting the unacknowledged window after a task " +
+      "restart or channel recovery. Only messages flagged as redelivered by RabbitMQ are checked. The keys are kept " +
+      "in memory of the worker and dropped a minute after the last task consuming the queue stopped.";
+
+  public static final String DEDUP_HEADER_CONF = "dedup.header";
+  public static final String DEDUP_HEADER_DOC = "Header holding the key used to detect duplicates. Empty uses the " +
+      "messageId property. Messages without a key are never dropped.";
+
+  public static final String DEDUP_CACHE_SIZE_CONF = "dedup.cache.size";
+  public static final String DEDUP_CACHE_SIZE_DOC = "Number of committed message keys remembered per queue. It should " +
+      "be at least the prefetch count so that the whole unacknowledged window is covered.";
+
+  public static final String AGGREGATION_MAX_MESSAGES_CONF = "aggregation.max.messages";
+  public static final String AGGREGATION_MAX_MESSAGES_DOC = "Packs up to this many consecutive messages of a queue into " +
+      "a single Kafka record whose value is the array of their bodies. The aggregate is acknowledged as a whole once " +
+      "the record is committed. Aggregated records bypass " + MESSAGE_CONVERTER_CLASSNAME_CONF + " and carry no key " +
+      "or headers. 0 disables aggregation.";
+
+  public static final String AGGREGATION_MAX_BYTES_CONF = "aggregation.max.bytes";
+  public static final String AGGREGATION_MAX_BYTES_DOC = "Maximum total size, in bytes, of the message bodies packed " +
+      "into one aggregated record.";
+
+  public static final String AGGREGATION_LINGER_MS_CONF = "aggregation.linger.ms";
+  public static final String AGGREGATION_LINGER_MS_DOC = "Maximum time in milliseconds the first message of an " +
+      "aggregate waits for the aggregate to fill before it is sent anyway.";
+
+  public static final String DECOMPRESSION_ENABLED_CONF = "message.decompression.enabled";
+  public static final String DECOMPRESSION_ENABLED_DOC = "Decompresses message bodies whose contentEncoding property " +
+      "is gzip, deflate, lz4, snappy or zstd before they are converted. Bodies with any other encoding are passed " +
+      "through unchanged. The record of a decompressed message has no contentEncoding, the value it was published " +
+      "with moves to the x-original-content-encoding header. Decompression runs on the conversion threads when " +
+      CONVERSION_THREADS_CONF + " is set.";
+
+  public static final String DECOMPRESSION_MAX_BYTES_CONF = "message.decompression.max.bytes";
+  public static final String DECOMPRESSION_MAX_BYTES_DOC = "Maximum size, in bytes, of a decompressed message body. " +
+      "Larger bodies are handled like any other conversion error instead of exhausting the heap, see " +
+      "message.errors.tolerance.";
+
+  public static final String ERRORS_TOLERANCE_CONF = "message.errors.tolerance";
+  public static final String ERRORS_TOLERANCE_NONE = "none";
+  public static final String ERRORS_TOLERANCE_ALL = "all";
+  public static final String ERRORS_TOLERANCE_DOC = "What to do with a message that can not be converted to a record. " +
+      "`" + ERRORS_TOLERANCE_NONE + "` fails the task. `" + ERRORS_TOLERANCE_ALL + "` rejects the message without " +
+      "requeueing it, so the broker dead-letters it if the queue has a dead letter exchange and drops it otherwise, " +
+      "and keeps consuming. Rejections are sent in bulk together with the acknowledgements.";
+
+  public static final String DEAD_LETTER_EXCHANGE_CONF = "message.errors.deadletter.exchange";
+  public static final String DEAD_LETTER_EXCHANGE_DOC = "Dead letter exchange set with the x-dead-letter-exchange " +
+      "argument on the queues the task declares, which receives the messages rejected because of " +
+      ERRORS_TOLERANCE_CONF + ". Empty declares the queues without one; a dead letter policy on the broker works as " +
+      "well. The arguments of an existing queue can not be changed by declaring it again.";
+
   public final String kafkaTopic;
+  public final String kafkaTopicTemplate;
   public final boolean autodelete;
   public final boolean durable;
   public final List<String> queues;
   public final int prefetchCount;
   public final boolean prefetchGlobal;
+  public final Map<String, Integer> queuePrefetchCounts;
+  public final boolean prefetchAdaptive;
+  public final int prefetchMin;
+  public final int prefetchMax;
+  public final long prefetchTargetLatencyMs;
+  public final long prefetchAdjustIntervalMs;
+  public final String queueAssignment;
+  public final boolean streamQueues;
+  public final Object streamOffset;
+  public final String partitionedDestination;
+  public final long queueDepthIntervalMs;
+  public final long drainTimeoutMs;
+  public final double queueDepthRebalanceSkew;
+  public final long queueDepthRebalanceCooldownMs;
+  public final double queueDepthRebalanceMinImprovement;
+  public final int partitionCount;
+  public final int kafkaPartitionCount;
+  public final String partitionKey;
   public final String messageConverter;
   public final String exchange;
   public final String routingKey;
   public final int ttl;
+  public final int ackBatchSize;
+  public final long ackBatchIntervalMs;
+  public final int bufferMaxRecords;
+  public final long bufferMaxBytes;
+  public final int conversionThreads;
+  public final int pollMaxRecords;
+  public final long pollMaxBytes;
+  public final long pollLingerMs;
+  public final boolean dedupEnabled;
+  public final String dedupHeader;
+  public final int dedupCacheSize;
+  public final int aggregationMaxMessages;
+  public final long aggregationMaxBytes;
+  public final long aggregationLingerMs;
+  public final boolean decompressionEnabled;
+  public final int decompressionMaxBytes;
+  public final boolean errorsTolerated;
+  public final String deadLetterExchange;
 
   public RabbitMQSourceConnectorConfig(Map<String, String> settings) {
     super(config(), settings);
 
     this.kafkaTopic = this.getString(TOPIC_CONF);
+    final String kafkaTopicTemplate = this.getString(TOPIC_TEMPLATE_CONF);
+    this.kafkaTopicTemplate = null == kafkaTopicTemplate || kafkaTopicTemplate.trim().isEmpty() ? null : kafkaTopicTemplate.trim();
+    if (null != this.kafkaTopicTemplate) {
+      try {
+        new TopicTemplate(this.kafkaTopicTemplate, this.kafkaTopic);
+      } catch (IllegalArgumentException e) {
+        throw new ConfigException(TOPIC_TEMPLATE_CONF, this.kafkaTopicTemplate, e.getMessage());
+      }
+    }
     this.autodelete = this.getBoolean(EXCHANGE_AUTODELETE);
     this.durable = this.getBoolean(EXCHANGE_DURABLE);
     this.queues = this.getList(QUEUE_CONF);
     this.prefetchCount = this.getInt(PREFETCH_COUNT_CONF);
     this.prefetchGlobal = this.getBoolean(PREFETCH_GLOBAL_CONF);
+    this.queuePrefetchCounts = queuePrefetchCounts(this.getList(QUEUE_PREFETCH_COUNT_CONF));
+    this.prefetchAdaptive = this.getBoolean(PREFETCH_ADAPTIVE_CONF);
+    this.prefetchMin = this.getInt(PREFETCH_MIN_CONF);
+    this.prefetchMax = this.getInt(PREFETCH_MAX_CONF);
+    this.prefetchTargetLatencyMs = this.getLong(PREFETCH_TARGET_LATENCY_CONF);
+    this.prefetchAdjustIntervalMs = this.getLong(PREFETCH_ADJUST_INTERVAL_CONF);
+    if (this.prefetchMin > this.prefetchMax) {
+      throw new ConfigException(PREFETCH_MIN_CONF, this.prefetchMin, "must not be greater than " + PREFETCH_MAX_CONF + ".");
+    }
+    this.queueAssignment = this.getString(QUEUE_ASSIGNMENT_CONF);
+    this.queueDepthIntervalMs = this.getLong(QUEUE_DEPTH_INTERVAL_MS_CONF);
+    this.queueDepthRebalanceSkew = this.getDouble(QUEUE_DEPTH_REBALANCE_SKEW_CONF);
+    this.queueDepthRebalanceCooldownMs = this.getLong(QUEUE_DEPTH_REBALANCE_COOLDOWN_MS_CONF);
+    this.queueDepthRebalanceMinImprovement = this.getDouble(QUEUE_DEPTH_REBALANCE_MIN_IMPROVEMENT_CONF);
+    this.streamQueues = QUEUE_TYPE_STREAM.equals(this.getString(QUEUE_TYPE_CONF));
+    this.streamOffset = streamOffset(this.getString(STREAM_OFFSET_CONF));
+    final String partitionedDestination = this.getString(PARTITIONED_DESTINATION_CONF);
+    this.partitionedDestination = null == partitionedDestination || partitionedDestination.isEmpty() ? null : partitionedDestination;
+    this.partitionCount = this.getInt(PARTITION_COUNT_CONF);
+    this.kafkaPartitionCount = this.getInt(KAFKA_PARTITION_COUNT_CONF);
+    final String partitionKey = this.getString(PARTITION_KEY_CONF).trim();
+    this.partitionKey = partitionKey.isEmpty() ? null : partitionKey;
+    if (null != this.partitionKey) {
+      try {
+        KeyPartitioner.validate(this.partitionKey);
+      } catch (IllegalArgumentException e) {
+        throw new ConfigException(PARTITION_KEY_CONF, this.partitionKey, e.getMessage());
+      }
+      if (this.kafkaPartitionCount <= 0) {
+        throw new ConfigException(KAFKA_PARTITION_COUNT_CONF, this.kafkaPartitionCount, "must be set when " + PARTITION_KEY_CONF + " is set.");
+      }
+      if (null != this.partitionedDestination) {
+        throw new ConfigException(PARTITION_KEY_CONF, this.partitionKey, "can not be combined with " + PARTITIONED_DESTINATION_CONF + ".");
+      }
+    }
+    if (null != this.partitionedDestination && this.kafkaPartitionCount <= 0) {
+      throw new ConfigException(KAFKA_PARTITION_COUNT_CONF, this.kafkaPartitionCount, "must be set when " + PARTITIONED_DESTINATION_CONF + " is set.");
+    }
+    if (null == this.partitionedDestination && this.queues.isEmpty()) {
+      throw new ConfigException(QUEUE_CONF, this.queues, "must not be empty unless " + PARTITIONED_DESTINATION_CONF + " is set.");
+    }
     this.messageConverter = this.getString(MESSAGE_CONVERTER_CLASSNAME_CONF);
     this.exchange = this.getString(EXCHANGE_CONF);
     this.routingKey = this.getString(ROUTING_KEY_CONF);
     this.ttl =  this.getInt(QUEUE_TTL_CONF);
+    if (this.streamQueues && this.prefetchCount == 0) {
+      throw new ConfigException(PREFETCH_COUNT_CONF, this.prefetchCount, "must be greater than 0 for stream queues.");
+    }
+    if (this.streamQueues && this.prefetchAdaptive) {
+      throw new ConfigException(PREFETCH_ADAPTIVE_CONF, this.prefetchAdaptive, "is not supported for stream queues, " +
+          "which reject the channel wide prefetch limit it relies on.");
+    }
+    if (this.streamQueues && this.prefetchGlobal) {
+      throw new ConfigException(PREFETCH_GLOBAL_CONF, this.prefetchGlobal, "is not supported for stream queues.");
+    }
+    this.bufferMaxRecords = this.getInt(BUFFER_MAX_RECORDS_CONF);
+    this.bufferMaxBytes = this.getLong(BUFFER_MAX_BYTES_CONF);
+    this.ackBatchSize = this.getInt(ACK_BATCH_SIZE_CONF);
+    this.ackBatchIntervalMs = this.getLong(ACK_BATCH_INTERVAL_CONF);
+    this.drainTimeoutMs = this.getLong(DRAIN_TIMEOUT_CONF);
+    this.conversionThreads = this.getInt(CONVERSION_THREADS_CONF);
+    this.pollMaxRecords = this.getInt(POLL_MAX_RECORDS_CONF);
+    this.pollMaxBytes = this.getLong(POLL_MAX_BYTES_CONF);
+    if (this.pollMaxRecords > this.bufferMaxRecords) {
+      throw new ConfigException(POLL_MAX_RECORDS_CONF, this.pollMaxRecords, "must not exceed " +
+          BUFFER_MAX_RECORDS_CONF + ", the buffer could never fill such a poll.");
+    }
+    if (this.pollMaxBytes > this.bufferMaxBytes) {
+      throw new ConfigException(POLL_MAX_BYTES_CONF, this.pollMaxBytes, "must not exceed " +
+          BUFFER_MAX_BYTES_CONF + ", the buffer could never fill such a poll.");
+    }
+    this.pollLingerMs = this.getLong(POLL_LINGER_MS_CONF);
+    this.dedupEnabled = this.getBoolean(DEDUP_ENABLED_CONF);
+    this.dedupHeader = this.getString(DEDUP_HEADER_CONF).trim();
+    this.dedupCacheSize = this.getInt(DEDUP_CACHE_SIZE_CONF);
+    this.aggregationMaxMessages = this.getInt(AGGREGATION_MAX_MESSAGES_CONF);
+    this.aggregationMaxBytes = this.getLong(AGGREGATION_MAX_BYTES_CONF);
+    this.aggregationLingerMs = this.getLong(AGGREGATION_LINGER_MS_CONF);
+    this.decompressionEnabled = this.getBoolean(DECOMPRESSION_ENABLED_CONF);
+    this.decompressionMaxBytes = this.getInt(DECOMPRESSION_MAX_BYTES_CONF);
+    this.errorsTolerated = ERRORS_TOLERANCE_ALL.equals(this.getString(ERRORS_TOLERANCE_CONF));
+    this.deadLetterExchange = this.getString(DEAD_LETTER_EXCHANGE_CONF).trim();
+    if (this.streamQueues && !this.deadLetterExchange.isEmpty()) {
+      throw new ConfigException(DEAD_LETTER_EXCHANGE_CONF, this.deadLetterExchange, "is not supported by stream queues.");
+    }
   }
 
   public static ConfigDef config() {
-    return CommonRabbitMQConnectorConfig.config()
+    return CommonRabbitMQConnectorConfig.config(false)
         .define(TOPIC_CONF, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH, TOPIC_DOC)
+        .define(TOPIC_TEMPLATE_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.MEDIUM, TOPIC_TEMPLATE_DOC)
         .define(EXCHANGE_DURABLE, ConfigDef.Type.BOOLEAN, false, ConfigDef.Importance.HIGH, EXCHANGE_DURABLE_DOC)
         .define(EXCHANGE_AUTODELETE, ConfigDef.Type.BOOLEAN, true, ConfigDef.Importance.HIGH, EXCHANGE_AUTODELETE_DOC)
         .define(PREFETCH_COUNT_CONF, ConfigDef.Type.INT, 0, ConfigDef.Importance.MEDIUM, PREFETCH_COUNT_DOC)
         .define(PREFETCH_GLOBAL_CONF, ConfigDef.Type.BOOLEAN, false, ConfigDef.Importance.MEDIUM, PREFETCH_GLOBAL_DOC)
-        .define(QUEUE_CONF, ConfigDef.Type.LIST, ConfigDef.Importance.HIGH, QUEUE_DOC)
+        .define(QUEUE_CONF, ConfigDef.Type.LIST, "", ConfigDef.Importance.HIGH, QUEUE_DOC)
+        .define(PREFETCH_ADAPTIVE_CONF, ConfigDef.Type.BOOLEAN, false, ConfigDef.Importance.LOW, PREFETCH_ADAPTIVE_DOC)
+        .define(PREFETCH_MIN_CONF, ConfigDef.Type.INT, 10, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, PREFETCH_MIN_DOC)
+        .define(PREFETCH_MAX_CONF, ConfigDef.Type.INT, 5000, ConfigDef.Range.between(1, 65535), ConfigDef.Importance.LOW, PREFETCH_MAX_DOC)
+        .define(PREFETCH_TARGET_LATENCY_CONF, ConfigDef.Type.LONG, 500L, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, PREFETCH_TARGET_LATENCY_DOC)
+        .define(PREFETCH_ADJUST_INTERVAL_CONF, ConfigDef.Type.LONG, 5000L, ConfigDef.Range.atLeast(100), ConfigDef.Importance.LOW, PREFETCH_ADJUST_INTERVAL_DOC)
+        .define(QUEUE_PREFETCH_COUNT_CONF, ConfigDef.Type.LIST, "", ConfigDef.Importance.LOW, QUEUE_PREFETCH_COUNT_DOC)
+        .define(QUEUE_ASSIGNMENT_CONF, ConfigDef.Type.STRING, QUEUE_ASSIGNMENT_SHARED,
+            ConfigDef.ValidString.in(QUEUE_ASSIGNMENT_SHARED, QUEUE_ASSIGNMENT_ROUND_ROBIN, QUEUE_ASSIGNMENT_QUEUE_DEPTH),
+            ConfigDef.Importance.MEDIUM, QUEUE_ASSIGNMENT_DOC)
+        .define(QUEUE_DEPTH_INTERVAL_MS_CONF, ConfigDef.Type.LONG, 0L, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, QUEUE_DEPTH_INTERVAL_MS_DOC)
+        .define(QUEUE_DEPTH_REBALANCE_SKEW_CONF, ConfigDef.Type.DOUBLE, 1.5, ConfigDef.Range.atLeast(1.0), ConfigDef.Importance.LOW, QUEUE_DEPTH_REBALANCE_SKEW_DOC)
+        .define(QUEUE_DEPTH_REBALANCE_COOLDOWN_MS_CONF, ConfigDef.Type.LONG, 300000L, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, QUEUE_DEPTH_REBALANCE_COOLDOWN_MS_DOC)
+        .define(QUEUE_DEPTH_REBALANCE_MIN_IMPROVEMENT_CONF, ConfigDef.Type.DOUBLE, 0.2, ConfigDef.Range.between(0.0, 1.0), ConfigDef.Importance.LOW, QUEUE_DEPTH_REBALANCE_MIN_IMPROVEMENT_DOC)
+        .define(QUEUE_TYPE_CONF, ConfigDef.Type.STRING, QUEUE_TYPE_CLASSIC,
+            ConfigDef.ValidString.in(QUEUE_TYPE_CLASSIC, QUEUE_TYPE_STREAM), ConfigDef.Importance.MEDIUM, QUEUE_TYPE_DOC)
+        .define(STREAM_OFFSET_CONF, ConfigDef.Type.STRING, "next", ConfigDef.Importance.MEDIUM, STREAM_OFFSET_DOC)
+        .define(PARTITIONED_DESTINATION_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.MEDIUM, PARTITIONED_DESTINATION_DOC)
+        .define(PARTITION_COUNT_CONF, ConfigDef.Type.INT, 0, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, PARTITION_COUNT_DOC)
+        .define(KAFKA_PARTITION_COUNT_CONF, ConfigDef.Type.INT, 0, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, KAFKA_PARTITION_COUNT_DOC)
+        .define(PARTITION_KEY_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.MEDIUM, PARTITION_KEY_DOC)
         .define(MESSAGE_CONVERTER_CLASSNAME_CONF, ConfigDef.Type.STRING, ConfigDef.Importance.MEDIUM, MESSAGE_CONVERTER_CLASSNAME_DOC)
         .define(EXCHANGE_CONF, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH, EXCHANGE_CONF_DOC)
         .define(ROUTING_KEY_CONF, ConfigDef.Type.STRING, ConfigDef.Importance.HIGH, ROUTING_KEY_CONF_DOC)
-        .define(QUEUE_TTL_CONF, ConfigDef.Type.INT, 0, ConfigDef.Importance.HIGH, QUEUE_TTL_DOC);
+        .define(QUEUE_TTL_CONF, ConfigDef.Type.INT, 0, ConfigDef.Importance.HIGH, QUEUE_TTL_DOC)
+        .define(BUFFER_MAX_RECORDS_CONF, ConfigDef.Type.INT, 10000, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, BUFFER_MAX_RECORDS_DOC)
+        .define(BUFFER_MAX_BYTES_CONF, ConfigDef.Type.LONG, 32L * 1024L * 1024L, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, BUFFER_MAX_BYTES_DOC)
+        .define(ACK_BATCH_SIZE_CONF, ConfigDef.Type.INT, 500, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, ACK_BATCH_SIZE_DOC)
+        .define(ACK_BATCH_INTERVAL_CONF, ConfigDef.Type.LONG, 250L, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, ACK_BATCH_INTERVAL_DOC)
+        .define(DRAIN_TIMEOUT_CONF, ConfigDef.Type.LONG, 3000L, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, DRAIN_TIMEOUT_DOC)
+        .define(CONVERSION_THREADS_CONF, ConfigDef.Type.INT, 0, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, CONVERSION_THREADS_DOC)
+        .define(POLL_MAX_RECORDS_CONF, ConfigDef.Type.INT, 10000, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, POLL_MAX_RECORDS_DOC)
+        .define(POLL_MAX_BYTES_CONF, ConfigDef.Type.LONG, 32L * 1024L * 1024L, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, POLL_MAX_BYTES_DOC)
+        .define(POLL_LINGER_MS_CONF, ConfigDef.Type.LONG, 0L, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, POLL_LINGER_MS_DOC)
+        .define(DEDUP_ENABLED_CONF, ConfigDef.Type.BOOLEAN, false, ConfigDef.Importance.LOW, DEDUP_ENABLED_DOC)
+        .define(DEDUP_HEADER_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.LOW, DEDUP_HEADER_DOC)
+        .define(DEDUP_CACHE_SIZE_CONF, ConfigDef.Type.INT, 100000, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, DEDUP_CACHE_SIZE_DOC)
+        .define(AGGREGATION_MAX_MESSAGES_CONF, ConfigDef.Type.INT, 0, ConfigDef.Range.atLeast(0), ConfigDef.Importance.LOW, AGGREGATION_MAX_MESSAGES_DOC)
+        .define(AGGREGATION_MAX_BYTES_CONF, ConfigDef.Type.LONG, 1024L * 1024L, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, AGGREGATION_MAX_BYTES_DOC)
+        .define(AGGREGATION_LINGER_MS_CONF, ConfigDef.Type.LONG, 100L, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, AGGREGATION_LINGER_MS_DOC)
+        .define(DECOMPRESSION_ENABLED_CONF, ConfigDef.Type.BOOLEAN, false, ConfigDef.Importance.LOW, DECOMPRESSION_ENABLED_DOC)
+        .define(DECOMPRESSION_MAX_BYTES_CONF, ConfigDef.Type.INT, 64 * 1024 * 1024, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, DECOMPRESSION_MAX_BYTES_DOC)
+        .define(ERRORS_TOLERANCE_CONF, ConfigDef.Type.STRING, ERRORS_TOLERANCE_NONE,
+            ConfigDef.ValidString.in(ERRORS_TOLERANCE_NONE, ERRORS_TOLERANCE_ALL), ConfigDef.Importance.MEDIUM, ERRORS_TOLERANCE_DOC)
+        .define(DEAD_LETTER_EXCHANGE_CONF, ConfigDef.Type.STRING, "", ConfigDef.Importance.MEDIUM, DEAD_LETTER_EXCHANGE_DOC);
+  }
+
+  /**
+   * @return the prefetch count to apply to the channel consuming {@code queue}.
+   */
+  public int prefetchCount(String queue) {
+    Integer prefetchCount = this.queuePrefetchCounts.get(queue);
+    return null == prefetchCount ? this.prefetchCount : prefetchCount;
+  }
+
+  static Map<String, Integer> queuePrefetchCounts(List<String> entries) {
+    if (entries.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    Map<String, Integer> result = new HashMap<>();
+    for (String entry : entries) {
+      int separator = entry.lastIndexOf(':');
+      if (separator <= 0) {
+        throw new ConfigException(QUEUE_PREFETCH_COUNT_CONF, entry, "must be in the format `queue`:`count`.");
+      }
+      try {
+        result.put(entry.substring(0, separator).trim(), Integer.parseInt(entry.substring(separator + 1).trim()));
+      } catch (NumberFormatException e) {
+        throw new ConfigException(QUEUE_PREFETCH_COUNT_CONF, entry, "count must be an integer.");
+      }
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * Converts the configured start position into the value of the {@code x-stream-offset} consumer argument.
+   */
+  static Object streamOffset(String value) {
+    final String trimmed = value.trim();
+    if ("first".equals(trimmed) || "last".equals(trimmed) || "next".equals(trimmed)) {
+      return trimmed;
+    }
+    try {
+      if (trimmed.startsWith("timestamp:")) {
+        return new Date(Long.parseLong(trimmed.substring("timestamp:".length()).trim()));
+      }
+      return Long.parseLong(trimmed);
+    } catch (NumberFormatException e) {
+      throw new ConfigException(STREAM_OFFSET_CONF, value, "must be first, last, next, an offset or timestamp:<epoch ms>.");
+    }
   }
 }
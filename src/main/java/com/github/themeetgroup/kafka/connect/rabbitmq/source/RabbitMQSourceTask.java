@@ -16,10 +16,12 @@
 package com.github.themeetgroup.kafka.connect.rabbitmq.source;
 
 import com.github.jcustenborder.kafka.connect.utils.VersionUtil;
-import com.github.jcustenborder.kafka.connect.utils.data.SourceRecordConcurrentLinkedDeque;
+import com.github.themeetgroup.kafka.connect.rabbitmq.ConnectionLease;
+import com.github.themeetgroup.kafka.connect.rabbitmq.SharedConnectionManager;
+import com.github.themeetgroup.kafka.connect.rabbitmq.source.data.SourceOffset;
+import com.github.themeetgroup.kafka.connect.rabbitmq.source.data.SourceRecordBuilder;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownSignalException;
 import org.apache.kafka.connect.errors.ConnectException;
 import org.apache.kafka.connect.errors.RetriableException;
 import org.apache.kafka.connect.source.SourceRecord;
@@ -29,18 +31,58 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RabbitMQSourceTask extends SourceTask {
 
   private static final Logger log = LoggerFactory.getLogger(RabbitMQSourceTask.class);
-  private SourceRecordConcurrentLinkedDeque records;
-  private Channel channel;
-  private Connection connection;
-  
+  private static final long POLL_TIMEOUT_MS = 1000L;
+  private SourceRecordBuffer records;
+  private final Map<String, ConnectConsumer> consumers = new LinkedHashMap<>();
+  private ConnectionLease connection;
+  private int ackBatchSize;
+  private long ackBatchIntervalMs;
+  private volatile long lastAckMs;
+  private PrefetchController prefetchController;
+  private ExecutorService conversionExecutor;
+  private int pollMaxRecords;
+  private long pollMaxBytes;
+  private long pollLingerMs;
+  private int averageBatchSize;
+  private long pollTimeoutMs;
+  private SourceTaskMetrics metrics;
+  private long drainTimeoutMs;
+  /**
+   * Number of records returned by {@link #poll()} that were not committed yet.
+   */
+  private final AtomicInteger uncommitted = new AtomicInteger();
+  private final Object commitMonitor = new Object();
+  private final SharedConnectionManager connections;
+  /**
+   * The thread that started the task and polls it, which finishes the shutdown once {@link #stop()} was requested.
+   */
+  private volatile Thread taskThread;
+  private volatile boolean stopping;
+  private final AtomicBoolean stopped = new AtomicBoolean();
+
+  public RabbitMQSourceTask() {
+    this(SharedConnectionManager.instance());
+  }
+
+  RabbitMQSourceTask(SharedConnectionManager connections) {
+    this.connections = connections;
+  }
+
   @Override
   public String version() {
     return VersionUtil.version(this.getClass());
@@ -48,84 +90,296 @@ public class RabbitMQSourceTask extends SourceTask {
 
   @Override
   public void start(Map<String, String> settings) {
+    this.taskThread = Thread.currentThread();
     RabbitMQSourceConnectorConfig config = new RabbitMQSourceConnectorConfig(settings);
-    this.records = new SourceRecordConcurrentLinkedDeque();
-    ConnectConsumer consumer;
-    try {
-      consumer = new ConnectConsumer(this.records, config);
-    } catch (Exception e) {
-      throw new ConnectException(e);
+    this.records = new SourceRecordBuffer(config.bufferMaxRecords, config.bufferMaxBytes);
+    final String connectorName = settings.getOrDefault(RabbitMQSourceConnectorConfig.CONNECTOR_NAME_CONF, "rabbitmq-source");
+    final String taskId = settings.getOrDefault(RabbitMQSourceConnectorConfig.TASK_ID_CONF, "0");
+    this.metrics = new SourceTaskMetrics(connectorName, taskId);
+    this.metrics.buffer(this.records);
+    this.ackBatchSize = config.ackBatchSize;
+    this.ackBatchIntervalMs = config.ackBatchIntervalMs;
+    this.lastAckMs = System.currentTimeMillis();
+    this.pollMaxRecords = config.pollMaxRecords;
+    this.pollMaxBytes = config.pollMaxBytes;
+    this.pollLingerMs = config.pollLingerMs;
+    this.drainTimeoutMs = config.drainTimeoutMs;
+    // Wake up often enough to flush aggregates whose linger time has passed.
+    this.pollTimeoutMs = config.aggregationMaxMessages > 0 ? Math.min(POLL_TIMEOUT_MS, config.aggregationLingerMs) : POLL_TIMEOUT_MS;
+
+    if (config.prefetchAdaptive) {
+      this.prefetchController = new PrefetchController(config, this.records, this.consumers.values());
+    }
+
+    if (config.conversionThreads > 0) {
+      log.info("Converting deliveries on {} thread(s)", config.conversionThreads);
+      this.conversionExecutor = Executors.newFixedThreadPool(config.conversionThreads, conversionThreadFactory());
     }
 
-    ConnectionFactory connectionFactory = config.connectionFactory();
     try {
-      log.info("Opening connection to {}:{}/{} (SSL: {})", config.host, config.port, config.virtualHost, config.useSsl);
-      this.connection = connectionFactory.newConnection();
+      this.connection = this.connections.acquire(config, SharedConnectionManager.Role.SOURCE, config.queues.size());
     } catch (IOException | TimeoutException e) {
       throw new ConnectException(e);
     }
 
-    try {
-      log.info("Creating Channel");
-      this.channel = this.connection.createChannel();
-
-      log.info("Declaring exchange");
-      this.channel.exchangeDeclare(config.exchange, "topic", config.durable, config.autodelete, null);
-
-      log.info("Declaring queues");
-      Map<String, Object> arguments = new HashMap<String, Object>();
-      Integer ttl = config.ttl;
-      if (ttl != 0) {
-        arguments.put("x-message-ttl", ttl);
-      }
-      for (String queue : config.queues) {
-        this.channel.queueDeclare(queue, true, false, false, arguments);
-        this.channel.queueBind(queue, config.exchange, config.routingKey);
-      }
-    } catch (IOException e) {
-      throw new ConnectException(e);
+    Map<String, Object> arguments = new HashMap<String, Object>();
+    Integer ttl = config.ttl;
+    if (config.streamQueues) {
+      arguments.put("x-queue-type", "stream");
+    } else if (ttl != 0) {
+      arguments.put("x-message-ttl", ttl);
+    }
+    if (!config.deadLetterExchange.isEmpty()) {
+      arguments.put("x-dead-letter-exchange", config.deadLetterExchange);
     }
 
+    boolean exchangeDeclared = false;
     for (String queue : config.queues) {
       try {
-        log.info("Starting consumer");
-        this.channel.basicConsume(queue, consumer);
-        log.info("Setting channel.basicQos({}, {});", config.prefetchCount, config.prefetchGlobal);
-        this.channel.basicQos(config.prefetchCount, config.prefetchGlobal);
-      } catch (IOException ex) {
+        log.info("Creating Channel for queue {}", queue);
+        Channel channel = this.connection.createChannel();
+
+        if (null != config.partitionedDestination) {
+          log.info("Checking partition {} of {}", queue, config.partitionedDestination);
+          channel.queueDeclarePassive(queue);
+        } else {
+          if (!exchangeDeclared) {
+            log.info("Declaring exchange");
+            channel.exchangeDeclare(config.exchange, "topic", config.durable, config.autodelete, null);
+            exchangeDeclared = true;
+          }
+
+          log.info("Declaring queue {}", queue);
+          channel.queueDeclare(queue, true, false, false, arguments);
+          channel.queueBind(queue, config.exchange, config.routingKey);
+        }
+
+        ConnectConsumer consumer = new ConnectConsumer(queue, channel, this.records, config, this.conversionExecutor, this.metrics);
+        this.consumers.put(queue, consumer);
+        int prefetchCount = config.prefetchCount(queue);
+        if (null != this.prefetchController) {
+          prefetchCount = this.prefetchController.initial(prefetchCount);
+        }
+        log.info("Setting channel.basicQos({}) for queue {}", prefetchCount, queue);
+        consumer.qos(prefetchCount);
+        log.info("Starting consumer for queue {}", queue);
+        consumer.consumerTag(channel.basicConsume(queue, false, consumerArguments(config, queue), consumer));
+      } catch (IOException | ReflectiveOperationException ex) {
+        // The framework does not stop a task that failed to start, release the queues that are already consumed.
+        log.error("Exception thrown while starting the consumer for queue {}, stopping the task.", queue, ex);
+        stop();
         throw new ConnectException(ex);
       }
     }
+  }
 
+  private static ThreadFactory conversionThreadFactory() {
+    final AtomicInteger threadNumber = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, "rabbitmq-source-conversion-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * For stream queues, resumes after the last offset committed to Kafka, falling back to
+   * {@link RabbitMQSourceConnectorConfig#streamOffset} for streams that were never read.
+   */
+  Map<String, Object> consumerArguments(RabbitMQSourceConnectorConfig config, String queue) {
+    if (!config.streamQueues) {
+      return Collections.emptyMap();
+    }
+    Object streamOffset = config.streamOffset;
+    Map<String, Object> committed = this.context.offsetStorageReader().offset(SourceRecordBuilder.streamPartition(queue));
+    if (null != committed && committed.get(SourceOffset.OFFSET_KEY) instanceof Number) {
+      streamOffset = ((Number) committed.get(SourceOffset.OFFSET_KEY)).longValue() + 1L;
+    }
+    log.info("Reading stream {} from offset {}", queue, streamOffset);
+    return Collections.singletonMap("x-stream-offset", streamOffset);
   }
 
   @Override
   public void commitRecord(SourceRecord record) {
-    Long deliveryTag = (Long) record.sourceOffset().get("deliveryTag");
+    if (this.uncommitted.decrementAndGet() <= 0) {
+      synchronized (this.commitMonitor) {
+        this.commitMonitor.notifyAll();
+      }
+    }
+    if (this.stopped.get()) {
+      // The connection is closed and every unacknowledged delivery was requeued.
+      return;
+    }
+    String queue = (String) record.sourcePartition().get("queue");
+    long deliveryTag = SourceOffset.deliveryTag(record.sourceOffset());
+    long firstDeliveryTag = SourceOffset.firstDeliveryTag(record.sourceOffset());
+    ConnectConsumer consumer = this.consumers.get(queue);
+    if (null == consumer) {
+      log.warn("commitRecord() - No consumer for queue '{}', can not acknowledge deliveryTag {}", queue, deliveryTag);
+      return;
+    }
+    if (consumer.isStale(SourceOffset.epoch(record.sourceOffset()))) {
+      log.debug("commitRecord() - Ignoring deliveryTag {} of queue '{}', delivered before the channel was recovered", deliveryTag, queue);
+      return;
+    }
+    int completed = consumer.complete(firstDeliveryTag, deliveryTag);
+    if (completed >= this.ackBatchSize) {
+      ack(consumer);
+    } else if (ackIntervalElapsed()) {
+      ack();
+    }
+  }
+
+  /**
+   * Acknowledges the committed deliveries. After {@link #stop()} the worker commits one last time on the task thread
+   * once the producer is flushed, which finishes the shutdown if {@link #poll()} did not get to it.
+   */
+  @Override
+  public void commit() {
+    if (this.stopping) {
+      if (Thread.currentThread() == this.taskThread) {
+        finishStop();
+      }
+      return;
+    }
+    ack();
+  }
+
+  private boolean ackIntervalElapsed() {
+    return System.currentTimeMillis() - this.lastAckMs >= this.ackBatchIntervalMs;
+  }
+
+  private void ack() {
+    this.lastAckMs = System.currentTimeMillis();
+    for (ConnectConsumer consumer : this.consumers.values()) {
+      ack(consumer);
+    }
+  }
+
+  private void ack(ConnectConsumer consumer) {
     try {
-      this.channel.basicAck(deliveryTag, false);
+      consumer.ack();
     } catch (IOException e) {
       throw new RetriableException(e);
+    } catch (ShutdownSignalException e) {
+      // Closed by stop() or the broker, which requeues the deliveries. A recovered channel starts a new epoch.
+      log.debug("ack() - channel of queue {} is closed, not acknowledging", consumer.queue(), e);
     }
   }
 
   @Override
   public List<SourceRecord> poll() throws InterruptedException {
-    List<SourceRecord> batch = new ArrayList<>(4096);
+    if (this.stopping) {
+      finishStop();
+      return null;
+    }
+    if (ackIntervalElapsed()) {
+      ack();
+    }
+    if (null != this.prefetchController) {
+      try {
+        this.prefetchController.maybeAdjust();
+      } catch (IOException e) {
+        throw new RetriableException(e);
+      }
+    }
 
-    while (!this.records.drain(batch)) {
-      Thread.sleep(1000);
+    for (ConnectConsumer consumer : this.consumers.values()) {
+      consumer.flushExpiredAggregate();
     }
 
+    // Kafka Connect holds on to the returned list until the records are sent, so it can not be reused. Size it for the
+    // recent batches instead, leaving some headroom so a slightly larger batch does not grow it.
+    final int expected = this.averageBatchSize + (this.averageBatchSize >> 2);
+    List<SourceRecord> batch = new ArrayList<>(Math.max(16, Math.min(expected, this.pollMaxRecords)));
+
+    if (!this.records.drain(batch, this.pollTimeoutMs, this.pollMaxRecords, this.pollMaxBytes, this.pollLingerMs)) {
+      if (this.stopping) {
+        finishStop();
+      }
+      return null;
+    }
+    this.averageBatchSize += (batch.size() - this.averageBatchSize) >> 3;
+    this.metrics.recordPoll(batch.size());
+    this.uncommitted.addAndGet(batch.size());
+
     return batch;
   }
 
+  /**
+   * Signals the task to stop without blocking the caller, which the framework calls for one task after another.
+   * Closes the buffer, which wakes {@link #poll()}, and cancels the consumers. The task thread then finishes the
+   * shutdown, see {@link #finishStop()}. Called on the task thread itself, when {@link #start(Map)} failed or the task
+   * was stopped before it completed, the shutdown is finished right away.
+   */
   @Override
   public void stop() {
+    this.stopping = true;
+    if (null != this.records) {
+      this.records.close();
+    }
+    for (ConnectConsumer consumer : this.consumers.values()) {
+      try {
+        consumer.cancel();
+      } catch (IOException | RuntimeException e) {
+        log.warn("Exception thrown while cancelling the consumer of queue {}.", consumer.queue(), e);
+      }
+    }
+    if (Thread.currentThread() == this.taskThread) {
+      finishStop();
+    }
+  }
+
+  /**
+   * Shuts down without handing the task's unacknowledged messages to the next consumer twice. Waits up to
+   * {@link RabbitMQSourceConnectorConfig#drainTimeoutMs} for the records already returned by {@link #poll()} to be
+   * committed and acknowledges them, then requeues everything else in bulk before the connection is closed. Runs once,
+   * on the task thread, so the tasks of a worker drain in parallel.
+   */
+  private void finishStop() {
+    if (!this.stopped.compareAndSet(false, true)) {
+      return;
+    }
+    awaitCommits();
     try {
+      ack();
+    } catch (RetriableException e) {
+      log.warn("Exception thrown while acknowledging committed records.", e);
+    }
+    for (ConnectConsumer consumer : this.consumers.values()) {
+      try {
+        consumer.requeueUnacked();
+      } catch (IOException | RuntimeException e) {
+        log.warn("Exception thrown while requeueing the unacknowledged messages of queue {}.", consumer.queue(), e);
+      }
+      consumer.close();
+    }
+    if (null != this.connection) {
       this.connection.close();
-    } catch (IOException e) {
-      log.error("Exception thrown while closing connection.", e);
+    }
+    if (null != this.conversionExecutor) {
+      this.conversionExecutor.shutdownNow();
+    }
+    if (null != this.metrics) {
+      this.metrics.close();
+    }
+  }
+
+  private void awaitCommits() {
+    final long deadline = System.currentTimeMillis() + this.drainTimeoutMs;
+    synchronized (this.commitMonitor) {
+      long remaining;
+      while (this.uncommitted.get() > 0 && (remaining = deadline - System.currentTimeMillis()) > 0L) {
+        try {
+          this.commitMonitor.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    if (this.uncommitted.get() > 0) {
+      log.info("stop() - {} record(s) were not committed within {} ms and will be redelivered", this.uncommitted.get(), this.drainTimeoutMs);
     }
   }
 }
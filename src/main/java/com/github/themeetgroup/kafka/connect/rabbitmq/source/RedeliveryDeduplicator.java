@@ -0,0 +1,134 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import com.rabbitmq.client.AMQP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the keys of the most recent messages of a queue that were committed to Kafka, so that the copies RabbitMQ
+ * redelivers after a task restart or channel recovery can be acknowledged without being produced again. Only keys of
+ * committed records are remembered: a redelivery is dropped only when an earlier copy is known to be in Kafka.
+ *
+ * Deduplicators are shared by every task of the worker that consumes the same queue with the same key header and
+ * cache size. They are reference counted: once the last consumer released a deduplicator it is kept for
+ * {@link #RETENTION_MS}, long enough for a restarted task to pick it up again, and dropped afterwards.
+ */
+class RedeliveryDeduplicator {
+  private static final Logger log = LoggerFactory.getLogger(RedeliveryDeduplicator.class);
+  static final long RETENTION_MS = TimeUnit.MINUTES.toMillis(1);
+  /**
+   * Guarded by the class lock.
+   */
+  private static final Map<String, RedeliveryDeduplicator> DEDUPLICATORS = new HashMap<>();
+
+  private final String header;
+  private final Map<String, Boolean> committed;
+  private int references;
+  private long releasedAt;
+
+  RedeliveryDeduplicator(String header, final int maxKeys) {
+    this.header = header;
+    this.committed = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > maxKeys;
+      }
+    };
+  }
+
+  /**
+   * @return the deduplicator of the queue on this worker, or null if deduplication is disabled. Must be handed back
+   *     with {@link #release()}.
+   */
+  static RedeliveryDeduplicator forQueue(RabbitMQSourceConnectorConfig config, String queue) {
+    return forQueue(config, queue, System.currentTimeMillis());
+  }
+
+  static synchronized RedeliveryDeduplicator forQueue(RabbitMQSourceConnectorConfig config, String queue, long now) {
+    if (!config.dedupEnabled) {
+      return null;
+    }
+    evictReleased(now);
+    final String key = config.host + ":" + config.port + "/" + config.virtualHost + "/" + queue + "/" +
+        config.dedupHeader + "/" + config.dedupCacheSize;
+    RedeliveryDeduplicator deduplicator = DEDUPLICATORS.computeIfAbsent(key, k -> {
+      log.info("Deduplicating redeliveries of {} by {}", k, config.dedupHeader.isEmpty() ? "messageId" : config.dedupHeader);
+      return new RedeliveryDeduplicator(config.dedupHeader, config.dedupCacheSize);
+    });
+    deduplicator.references++;
+    return deduplicator;
+  }
+
+  /**
+   * Hands back a deduplicator obtained from {@link #forQueue(RabbitMQSourceConnectorConfig, String)}.
+   */
+  void release() {
+    release(System.currentTimeMillis());
+  }
+
+  void release(long now) {
+    synchronized (RedeliveryDeduplicator.class) {
+      if (this.references > 0 && --this.references == 0) {
+        this.releasedAt = now;
+      }
+      evictReleased(now);
+    }
+  }
+
+  private static void evictReleased(long now) {
+    Iterator<Map.Entry<String, RedeliveryDeduplicator>> iterator = DEDUPLICATORS.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, RedeliveryDeduplicator> entry = iterator.next();
+      RedeliveryDeduplicator deduplicator = entry.getValue();
+      if (0 == deduplicator.references && now - deduplicator.releasedAt >= RETENTION_MS) {
+        log.info("Dropping the deduplicator of {}", entry.getKey());
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the deduplication key of the message, or null if it has none.
+   */
+  String key(AMQP.BasicProperties basicProperties) {
+    if (this.header.isEmpty()) {
+      return basicProperties.getMessageId();
+    }
+    Map<String, Object> headers = basicProperties.getHeaders();
+    Object value = null == headers ? null : headers.get(this.header);
+    return null == value ? null : value.toString();
+  }
+
+  synchronized boolean isCommitted(String key) {
+    return null != this.committed.get(key);
+  }
+
+  synchronized void committed(String key) {
+    this.committed.put(key, Boolean.TRUE);
+  }
+
+  synchronized int size() {
+    return this.committed.size();
+  }
+}
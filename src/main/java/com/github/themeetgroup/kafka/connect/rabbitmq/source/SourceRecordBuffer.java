@@ -0,0 +1,273 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.source.SourceRecord;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Hand-off buffer between the AMQP consumer dispatch threads and {@link RabbitMQSourceTask#poll()}. The buffer is
+ * bounded both by the number of records and by the total size of the message bodies it holds. Producers block while
+ * the buffer is full, which stalls the channel's dispatch thread and lets the prefetch window push back on the broker.
+ */
+class SourceRecordBuffer {
+
+  private final int maxRecords;
+  private final long maxBytes;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+  private long bytes;
+  private boolean closed;
+  private Throwable failure;
+
+  SourceRecordBuffer(int maxRecords, long maxBytes) {
+    this.maxRecords = maxRecords;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Adds a record to the buffer, blocking while the buffer is full. A record larger than the byte bound is still
+   * accepted once the buffer is empty so that a single oversized message can not wedge the consumer.
+   *
+   * @return false if the buffer was closed, or failed, before the record could be added.
+   */
+  boolean put(SourceRecord record, int size) throws InterruptedException {
+    return put(record, size, null);
+  }
+
+  /**
+   * Like {@link #put(SourceRecord, int)}, but drops the record if {@code stale} matches it, either right away or once
+   * {@link #purge(Predicate)} wakes the producer while it waits for room. The check runs under the buffer's lock, so a
+   * record can not slip in after a purge that it would have matched.
+   *
+   * @return false if the buffer was closed or failed, or the record was stale.
+   */
+  boolean put(SourceRecord record, int size, Predicate<SourceRecord> stale) throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (!closed && null == failure && !isStale(stale, record) && isFull(size)) {
+        notFull.await();
+      }
+      if (closed || null != failure || isStale(stale, record)) {
+        return false;
+      }
+      entries.addLast(new Entry(record, size));
+      bytes += size;
+      notEmpty.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds a record to the buffer if there is room for it, without blocking.
+   *
+   * @return false if the buffer is full, closed or failed.
+   */
+  boolean offer(SourceRecord record, int size) {
+    return offer(record, size, null);
+  }
+
+  /**
+   * Like {@link #offer(SourceRecord, int)}, but drops the record if {@code stale} matches it.
+   *
+   * @return false if the buffer is full, closed or failed, or {@code stale} matches the record.
+   */
+  boolean offer(SourceRecord record, int size, Predicate<SourceRecord> stale) {
+    lock.lock();
+    try {
+      if (closed || null != failure || isFull(size) || isStale(stale, record)) {
+        return false;
+      }
+      entries.addLast(new Entry(record, size));
+      bytes += size;
+      notEmpty.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits up to {@code timeoutMs} for the first record to arrive, then moves everything that is buffered into
+   * {@code batch}.
+   *
+   * @return true if at least one record was added to the batch.
+   * @throws ConnectException if a record could not be produced, see {@link #fail(Throwable)}.
+   */
+  boolean drain(List<SourceRecord> batch, long timeoutMs) throws InterruptedException {
+    return drain(batch, timeoutMs, Integer.MAX_VALUE, Long.MAX_VALUE, 0L);
+  }
+
+  /**
+   * Waits up to {@code timeoutMs} for the first record to arrive. If fewer than {@code maxRecords} records or
+   * {@code maxBytes} bytes are buffered at that point, waits up to another {@code lingerMs} for the batch to fill,
+   * unless the buffer itself is full.
+   * Then moves records into {@code batch} until either limit is reached. The first record is always taken, even if
+   * it is larger than {@code maxBytes}.
+   *
+   * @return true if at least one record was added to the batch.
+   * @throws ConnectException if a record could not be produced, see {@link #fail(Throwable)}.
+   */
+  boolean drain(List<SourceRecord> batch, long timeoutMs, int maxRecords, long maxBytes, long lingerMs) throws InterruptedException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    lock.lockInterruptibly();
+    try {
+      while (entries.isEmpty()) {
+        if (null != failure) {
+          throw new ConnectException("Exception thrown while converting a delivery.", failure);
+        }
+        if (closed || remaining <= 0L) {
+          return false;
+        }
+        remaining = notEmpty.awaitNanos(remaining);
+      }
+      long linger = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+      // Stop lingering once the buffer is full, the producers can not add to the batch until it is drained.
+      while (linger > 0L && !closed && null == failure && entries.size() < maxRecords && bytes < maxBytes && !isFull(0)) {
+        linger = notEmpty.awaitNanos(linger);
+      }
+      int drainedRecords = 0;
+      long drainedBytes = 0L;
+      Entry entry;
+      while (drainedRecords < maxRecords && (entry = entries.peekFirst()) != null) {
+        if (drainedRecords > 0 && drainedBytes + entry.size > maxBytes) {
+          break;
+        }
+        entries.pollFirst();
+        batch.add(entry.record);
+        drainedRecords++;
+        drainedBytes += entry.size;
+      }
+      bytes -= drainedBytes;
+      notFull.signalAll();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Releases every thread blocked in {@link #put(SourceRecord, int)} or {@link #drain(List, long)} and discards the
+   * records that are still buffered. Their deliveries stay unacknowledged, so the task can return them to the broker.
+   */
+  void close() {
+    lock.lock();
+    try {
+      closed = true;
+      entries.clear();
+      bytes = 0L;
+      notFull.signalAll();
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes every buffered record matching {@code filter}. Producers blocked in
+   * {@link #put(SourceRecord, int, Predicate)} are woken even if nothing was removed, so that a producer whose record
+   * has become stale drops it instead of waiting for room.
+   *
+   * @return the number of records removed.
+   */
+  int purge(Predicate<SourceRecord> filter) {
+    lock.lock();
+    try {
+      int purged = 0;
+      for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+        Entry entry = iterator.next();
+        if (filter.test(entry.record)) {
+          iterator.remove();
+          bytes -= entry.size;
+          purged++;
+        }
+      }
+      notFull.signalAll();
+      return purged;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reports that a record could not be produced. Records buffered before the failure are still drained; after that
+   * {@link #drain(List, long)} throws so the task fails rather than skipping the delivery. Producers blocked in
+   * {@link #put(SourceRecord, int)} are released and no further records are accepted, as the task is about to stop.
+   */
+  void fail(Throwable cause) {
+    lock.lock();
+    try {
+      if (null == failure) {
+        failure = cause;
+      }
+      notFull.signalAll();
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int size() {
+    lock.lock();
+    try {
+      return entries.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long bytes() {
+    lock.lock();
+    try {
+      return bytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static boolean isStale(Predicate<SourceRecord> stale, SourceRecord record) {
+    return null != stale && stale.test(record);
+  }
+
+  private boolean isFull(int size) {
+    if (entries.isEmpty()) {
+      return false;
+    }
+    return entries.size() >= maxRecords || bytes + size > maxBytes;
+  }
+
+  private static final class Entry {
+    final SourceRecord record;
+    final int size;
+
+    Entry(SourceRecord record, int size) {
+      this.record = record;
+      this.size = size;
+    }
+  }
+}
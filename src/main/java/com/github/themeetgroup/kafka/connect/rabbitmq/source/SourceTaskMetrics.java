@@ -0,0 +1,210 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.MetricsReporter;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Meter;
+import org.apache.kafka.common.metrics.stats.Percentile;
+import org.apache.kafka.common.metrics.stats.Percentiles;
+import org.apache.kafka.common.utils.SystemTime;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kafka metrics of a source task, published over JMX as {@code kafka.connect.rabbitmq:type=source-task-metrics} and,
+ * per queue, {@code kafka.connect.rabbitmq:type=source-queue-metrics}.
+ *
+ * Gauges are only computed when they are read. Recording a message costs a few short synchronized sensor updates,
+ * the same mechanism the Kafka producer uses per record, so the metrics can stay enabled in production.
+ */
+class SourceTaskMetrics implements AutoCloseable {
+  static final String JMX_PREFIX = "kafka.connect.rabbitmq";
+  static final String TASK_GROUP = "source-task-metrics";
+  static final String QUEUE_GROUP = "source-queue-metrics";
+  /**
+   * Conversion times above this many microseconds all fall into the last histogram bucket. Most conversions take a
+   * few microseconds, so the range is kept small: the linear bin scheme widens its buckets with the value, and with
+   * 1000 buckets over 10ms they are at most 1.5µs wide below 50µs and 20µs wide near the upper bound. Each bucket
+   * takes 4 bytes per sample window.
+   */
+  static final double CONVERSION_TIME_MAX_US = TimeUnit.MILLISECONDS.toMicros(10);
+  static final int CONVERSION_TIME_BUCKETS = 1000;
+
+  private final Metrics metrics;
+  private final Map<String, String> taskTags;
+  private final Sensor pollBatchSize;
+  private final Map<String, QueueMetrics> queues = new ConcurrentHashMap<>();
+
+  SourceTaskMetrics(String connector, String task) {
+    this(new Metrics(new MetricConfig(), Collections.<MetricsReporter>singletonList(new JmxReporter(JMX_PREFIX)), new SystemTime()), connector, task);
+  }
+
+  SourceTaskMetrics(Metrics metrics, String connector, String task) {
+    this.metrics = metrics;
+    this.taskTags = new LinkedHashMap<>();
+    this.taskTags.put("connector", connector);
+    this.taskTags.put("task", task);
+
+    this.pollBatchSize = this.metrics.sensor("poll-batch-size");
+    this.pollBatchSize.add(taskMetric("poll-batch-size-avg", "Average number of records returned by poll()."), new Avg());
+    this.pollBatchSize.add(taskMetric("poll-batch-size-max", "Maximum number of records returned by poll()."), new Max());
+  }
+
+  /**
+   * Publishes the depth of the task's record buffer.
+   */
+  void buffer(SourceRecordBuffer records) {
+    this.metrics.addMetric(
+        taskMetric("buffered-records", "Number of records waiting in the buffer to be polled."),
+        (Measurable) (config, now) -> records.size()
+    );
+    this.metrics.addMetric(
+        taskMetric("buffered-bytes", "Size in bytes of the message bodies waiting in the buffer to be polled."),
+        (Measurable) (config, now) -> records.bytes()
+    );
+  }
+
+  void recordPoll(int batchSize) {
+    this.pollBatchSize.record(batchSize);
+  }
+
+  Map<String, String> taskTags() {
+    return this.taskTags;
+  }
+
+  Metrics metrics() {
+    return this.metrics;
+  }
+
+  /**
+   * @return the sensors of the queue, shared by every consumer of the queue over the life of the task.
+   */
+  QueueMetrics queue(String queue) {
+    return this.queues.computeIfAbsent(queue, QueueMetrics::new);
+  }
+
+  private MetricName taskMetric(String name, String description) {
+    return this.metrics.metricName(name, TASK_GROUP, description, this.taskTags);
+  }
+
+  @Override
+  public void close() {
+    this.metrics.close();
+  }
+
+  /**
+   * Sensors of a single queue consumed by the task.
+   */
+  class QueueMetrics {
+    private final Map<String, String> tags;
+    private final Sensor deliveries;
+    private final Sensor deliveredBytes;
+    private final Sensor ackLatency;
+    private final Sensor conversionTime;
+    private final Sensor errors;
+    private final Sensor rejected;
+
+    private QueueMetrics(String queue) {
+      this.tags = new LinkedHashMap<>(taskTags);
+      this.tags.put("queue", queue);
+      final String prefix = "queue." + queue + ".";
+
+      this.deliveries = metrics.sensor(prefix + "deliveries");
+      this.deliveries.add(new Meter(
+          metric("deliveries-rate", "Number of messages delivered by the broker per second."),
+          metric("deliveries-total", "Total number of messages delivered by the broker.")
+      ));
+      this.deliveredBytes = metrics.sensor(prefix + "delivered-bytes");
+      this.deliveredBytes.add(new Meter(
+          metric("delivered-bytes-rate", "Size in bytes of the message bodies delivered by the broker per second."),
+          metric("delivered-bytes-total", "Total size in bytes of the message bodies delivered by the broker.")
+      ));
+      this.errors = metrics.sensor(prefix + "errors");
+      this.errors.add(new Meter(
+          metric("conversion-errors-rate", "Number of messages per second that could not be converted to a record."),
+          metric("conversion-errors-total", "Total number of messages that could not be converted to a record.")
+      ));
+      this.rejected = metrics.sensor(prefix + "rejected");
+      this.rejected.add(new Meter(
+          metric("rejected-rate", "Number of messages per second rejected without requeueing after a conversion error."),
+          metric("rejected-total", "Total number of messages rejected without requeueing after a conversion error.")
+      ));
+
+      this.ackLatency = metrics.sensor(prefix + "ack-latency");
+      this.ackLatency.add(metric("ack-latency-avg", "Average time in milliseconds from delivery until the record is committed to Kafka and the message can be acknowledged."), new Avg());
+      this.ackLatency.add(metric("ack-latency-max", "Maximum time in milliseconds from delivery until the record is committed to Kafka and the message can be acknowledged."), new Max());
+
+      this.conversionTime = metrics.sensor(prefix + "conversion-time");
+      this.conversionTime.add(metric("conversion-time-avg-us", "Average time in microseconds to convert a message to a record."), new Avg());
+      this.conversionTime.add(metric("conversion-time-max-us", "Maximum time in microseconds to convert a message to a record."), new Max());
+      this.conversionTime.add(new Percentiles(
+          CONVERSION_TIME_BUCKETS * 4,
+          CONVERSION_TIME_MAX_US,
+          Percentiles.BucketSizing.LINEAR,
+          new Percentile(metric("conversion-time-p50-us", "Median time in microseconds to convert a message to a record."), 50),
+          new Percentile(metric("conversion-time-p95-us", "95th percentile of the time in microseconds to convert a message to a record."), 95),
+          new Percentile(metric("conversion-time-p99-us", "99th percentile of the time in microseconds to convert a message to a record."), 99)
+      ));
+    }
+
+    /**
+     * Publishes the number of deliveries of the queue that the broker still considers unacknowledged, replacing the
+     * gauge of an earlier consumer of the queue.
+     */
+    void unacked(Measurable unacked) {
+      MetricName name = metric("unacked", "Number of delivered messages that are not acknowledged yet.");
+      metrics.removeMetric(name);
+      metrics.addMetric(name, unacked);
+    }
+
+    void recordDelivery(int bytes) {
+      this.deliveries.record();
+      this.deliveredBytes.record(bytes);
+    }
+
+    void recordError() {
+      this.errors.record();
+    }
+
+    void recordRejected(long messages) {
+      this.rejected.record(messages);
+    }
+
+    void recordAckLatency(long nanos) {
+      this.ackLatency.record(nanos / 1000000.0);
+    }
+
+    void recordConversion(long nanos) {
+      this.conversionTime.record(nanos / 1000.0);
+    }
+
+    private MetricName metric(String name, String description) {
+      return metrics.metricName(name, QUEUE_GROUP, description, this.tags);
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import io.confluent.connect.avro.AvroData;
+import io.confluent.kafka.schemaregistry.client.CachedSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaAndValue;
+import org.apache.kafka.connect.errors.DataException;
+import org.apache.kafka.connect.header.ConnectHeaders;
+import org.apache.kafka.connect.header.Headers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.github.themeetgroup.kafka.connect.rabbitmq.source.data.MessageConverter.basicProperties;
+
+/**
+ * Decodes message bodies written in the Confluent wire format (a zero magic byte, a four byte schema id and the Avro
+ * binary encoding) into Connect data. The writer schema, its Connect equivalent and a datum reader are cached per
+ * schema id, so the schema registry is only consulted the first time an id is seen.
+ */
+public class AvroSourceMessageConverter implements SourceMessageConverter<String, Object> {
+  private static final Logger log = LoggerFactory.getLogger(AvroSourceMessageConverter.class);
+
+  static final byte MAGIC_BYTE = 0x0;
+  static final int HEADER_LENGTH = 5;
+
+  private final ThreadLocal<BinaryDecoder> decoders = new ThreadLocal<>();
+  private SchemaRegistryClient schemaRegistry;
+  private AvroData avroData;
+  private Map<Integer, DecodePlan> decodePlans;
+
+  public AvroSourceMessageConverter() {
+  }
+
+  AvroSourceMessageConverter(SchemaRegistryClient schemaRegistry, int schemaCacheSize) {
+    configure(schemaRegistry, schemaCacheSize);
+  }
+
+  @Override
+  public void configure(Map<String, ?> settings) {
+    AvroSourceMessageConverterConfig config = new AvroSourceMessageConverterConfig(settings);
+    configure(
+        new CachedSchemaRegistryClient(config.schemaRegistryUrls, config.schemaCacheSize, settings),
+        config.schemaCacheSize
+    );
+  }
+
+  private void configure(SchemaRegistryClient schemaRegistry, final int schemaCacheSize) {
+    this.schemaRegistry = schemaRegistry;
+    this.avroData = new AvroData(schemaCacheSize);
+    this.decodePlans = new LinkedHashMap<Integer, DecodePlan>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, DecodePlan> eldest) {
+        return size() > schemaCacheSize;
+      }
+    };
+  }
+
+  @Override
+  public SchemaAndValue schemaAndValue(String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] body) {
+    if (null == body || body.length < HEADER_LENGTH || MAGIC_BYTE != body[0]) {
+      throw new DataException(
+          String.format("Message with deliveryTag %s is not in the schema registry wire format.", envelope.getDeliveryTag())
+      );
+    }
+    final int schemaId = ByteBuffer.wrap(body, 1, 4).getInt();
+    final DecodePlan plan = decodePlan(schemaId);
+
+    final BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(body, HEADER_LENGTH, body.length - HEADER_LENGTH, this.decoders.get());
+    this.decoders.set(decoder);
+    final Object datum;
+    try {
+      datum = plan.reader.read(null, decoder);
+    } catch (IOException | RuntimeException e) {
+      throw new DataException(
+          String.format("Could not decode message with deliveryTag %s using schema id %s", envelope.getDeliveryTag(), schemaId), e
+      );
+    }
+    return new SchemaAndValue(plan.connectSchema, this.avroData.toConnectData(plan.avroSchema, datum).value());
+  }
+
+  DecodePlan decodePlan(int schemaId) {
+    DecodePlan plan;
+    synchronized (this.decodePlans) {
+      plan = this.decodePlans.get(schemaId);
+    }
+    if (null != plan) {
+      return plan;
+    }
+
+    log.debug("decodePlan() - Looking up schema id {}", schemaId);
+    final org.apache.avro.Schema avroSchema;
+    try {
+      avroSchema = this.schemaRegistry.getById(schemaId);
+    } catch (IOException | RestClientException e) {
+      throw new DataException(String.format("Could not retrieve schema id %s from the schema registry.", schemaId), e);
+    }
+    plan = new DecodePlan(avroSchema, this.avroData.toConnectSchema(avroSchema));
+    synchronized (this.decodePlans) {
+      this.decodePlans.put(schemaId, plan);
+    }
+    return plan;
+  }
+
+  @Override
+  public Object value(String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] body) {
+    return schemaAndValue(consumerTag, envelope, basicProperties, body).value();
+  }
+
+  /**
+   * The value schema depends on the schema id of each message, see {@link #schemaAndValue}.
+   *
+   * @return null
+   */
+  @Override
+  public Schema valueSchema() {
+    return null;
+  }
+
+  @Override
+  public String key(String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] body) {
+    return basicProperties.getMessageId();
+  }
+
+  @Override
+  public Schema keySchema() {
+    return Schema.OPTIONAL_STRING_SCHEMA;
+  }
+
+  @Override
+  public Headers headers(String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] body) {
+    return new ConnectHeaders().addStruct("amqp", basicProperties(basicProperties));
+  }
+
+  static final class DecodePlan {
+    final org.apache.avro.Schema avroSchema;
+    final Schema connectSchema;
+    final DatumReader<Object> reader;
+
+    DecodePlan(org.apache.avro.Schema avroSchema, Schema connectSchema) {
+      this.avroSchema = avroSchema;
+      this.connectSchema = connectSchema;
+      this.reader = new GenericDatumReader<>(avroSchema);
+    }
+  }
+}
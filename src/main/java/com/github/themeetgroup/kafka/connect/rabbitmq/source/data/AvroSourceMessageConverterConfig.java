@@ -0,0 +1,52 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import org.apache.kafka.common.config.AbstractConfig;
+import org.apache.kafka.common.config.ConfigDef;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Settings for {@link AvroSourceMessageConverter}. They are read from the connector configuration with the
+ * {@code message.converter.} prefix, e.g. {@code message.converter.schema.registry.url}.
+ */
+class AvroSourceMessageConverterConfig extends AbstractConfig {
+
+  static final String SCHEMA_REGISTRY_URL_CONF = "schema.registry.url";
+  static final String SCHEMA_REGISTRY_URL_DOC = "Comma-separated list of URLs of the schema registry that holds the " +
+      "writer schemas of the message bodies.";
+
+  static final String SCHEMA_CACHE_SIZE_CONF = "schema.cache.size";
+  static final String SCHEMA_CACHE_SIZE_DOC = "Maximum number of schema ids whose Avro schema, Connect schema and " +
+      "decoder are kept in memory. The least recently used entry is evicted when the cache is full.";
+
+  public final List<String> schemaRegistryUrls;
+  public final int schemaCacheSize;
+
+  AvroSourceMessageConverterConfig(Map<String, ?> settings) {
+    super(config(), settings);
+    this.schemaRegistryUrls = this.getList(SCHEMA_REGISTRY_URL_CONF);
+    this.schemaCacheSize = this.getInt(SCHEMA_CACHE_SIZE_CONF);
+  }
+
+  static ConfigDef config() {
+    return new ConfigDef()
+        .define(SCHEMA_REGISTRY_URL_CONF, ConfigDef.Type.LIST, ConfigDef.Importance.HIGH, SCHEMA_REGISTRY_URL_DOC)
+        .define(SCHEMA_CACHE_SIZE_CONF, ConfigDef.Type.INT, 1000, ConfigDef.Range.atLeast(1), ConfigDef.Importance.LOW, SCHEMA_CACHE_SIZE_DOC);
+  }
+}
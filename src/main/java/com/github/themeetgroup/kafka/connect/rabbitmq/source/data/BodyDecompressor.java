@@ -0,0 +1,209 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import com.github.luben.zstd.ZstdInputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import org.apache.kafka.connect.errors.DataException;
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyFramedInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses message bodies according to their contentEncoding property. Supported encodings are gzip, deflate
+ * (zlib), lz4 (frame format), snappy (raw or framed) and zstd; any other encoding is returned unchanged.
+ *
+ * Bodies are decompressed into a buffer kept per thread, so the only allocation per message is the copy of the
+ * exact decompressed size that the converter gets to keep.
+ */
+public class BodyDecompressor {
+  static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+  static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+  private static final byte[] SNAPPY_FRAMED_MAGIC = {
+      (byte) 0xff, 0x06, 0x00, 0x00, 0x73, 0x4e, 0x61, 0x50, 0x70, 0x59
+  };
+  private static final ThreadLocal<Buffer> BUFFERS = ThreadLocal.withInitial(Buffer::new);
+  private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+  private final int maxBytes;
+
+  /**
+   * @param maxBytes largest decompressed body accepted.
+   */
+  public BodyDecompressor(int maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return the decompressed body, or {@code body} itself if the encoding is not a supported compression.
+   * @throws DataException if the body is not valid for its encoding or decompresses to more than the maximum size.
+   */
+  public byte[] decompress(String contentEncoding, byte[] body) {
+    if (null == contentEncoding || null == body || body.length == 0) {
+      return body;
+    }
+    final String encoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+    final Buffer buffer = BUFFERS.get();
+    buffer.reset(this.maxBytes);
+    try {
+      switch (encoding) {
+        case "gzip":
+        case "x-gzip":
+          try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            buffer.readFrom(input);
+          }
+          break;
+        case "deflate":
+          buffer.inflate(INFLATERS.get(), body);
+          break;
+        case "lz4":
+          try (InputStream input = new LZ4FrameInputStream(new ByteArrayInputStream(body))) {
+            buffer.readFrom(input);
+          }
+          break;
+        case "snappy":
+          if (isSnappyFramed(body)) {
+            try (InputStream input = new SnappyFramedInputStream(new ByteArrayInputStream(body))) {
+              buffer.readFrom(input);
+            }
+          } else {
+            buffer.uncompressSnappy(body);
+          }
+          break;
+        case "zstd":
+          try (InputStream input = new ZstdInputStream(new ByteArrayInputStream(body))) {
+            buffer.readFrom(input);
+          }
+          break;
+        default:
+          return body;
+      }
+      return buffer.toByteArray();
+    } catch (IOException | DataFormatException | RuntimeException e) {
+      throw new DataException(String.format("Could not decompress %s encoded message body", encoding), e);
+    } finally {
+      buffer.release();
+    }
+  }
+
+  static boolean isSnappyFramed(byte[] body) {
+    if (body.length < SNAPPY_FRAMED_MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < SNAPPY_FRAMED_MAGIC.length; i++) {
+      if (body[i] != SNAPPY_FRAMED_MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Growable output buffer that codecs write into directly, without intermediate chunk copies.
+   */
+  static class Buffer {
+    private byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+    private int count;
+    private int maxBytes;
+
+    void reset(int maxBytes) {
+      this.count = 0;
+      this.maxBytes = maxBytes;
+    }
+
+    int capacity() {
+      return this.bytes.length;
+    }
+
+    void readFrom(InputStream input) throws IOException {
+      while (true) {
+        if (this.count == this.bytes.length) {
+          grow(this.count + 1);
+        }
+        int read = input.read(this.bytes, this.count, this.bytes.length - this.count);
+        if (read < 0) {
+          break;
+        }
+        this.count += read;
+      }
+      checkSize(this.count);
+    }
+
+    void inflate(Inflater inflater, byte[] body) throws IOException, DataFormatException {
+      inflater.reset();
+      inflater.setInput(body);
+      while (!inflater.finished()) {
+        if (this.count == this.bytes.length) {
+          grow(this.count + 1);
+        }
+        int inflated = inflater.inflate(this.bytes, this.count, this.bytes.length - this.count);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Deflate stream is truncated or needs a preset dictionary");
+        }
+        this.count += inflated;
+      }
+      checkSize(this.count);
+    }
+
+    void uncompressSnappy(byte[] body) throws IOException {
+      int length = Snappy.uncompressedLength(body);
+      checkSize(length);
+      if (length > this.bytes.length) {
+        this.bytes = new byte[length];
+      }
+      this.count = Snappy.uncompress(body, 0, body.length, this.bytes, 0);
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(this.bytes, this.count);
+    }
+
+    /**
+     * Drops a buffer that grew for an unusually large body, so that it is not held by the thread forever.
+     */
+    void release() {
+      if (this.bytes.length > MAX_RETAINED_BUFFER_SIZE) {
+        this.bytes = new byte[INITIAL_BUFFER_SIZE];
+      }
+      this.count = 0;
+    }
+
+    private void grow(int minCapacity) throws IOException {
+      // One byte past the limit is enough to tell that a body is too large.
+      checkSize(minCapacity - 1);
+      long capacity = Math.max((long) this.bytes.length << 1, minCapacity);
+      long limit = Math.min((long) this.maxBytes + 1L, Integer.MAX_VALUE - 8);
+      if (limit < minCapacity) {
+        throw new IOException("Decompressed body is too large for a byte array");
+      }
+      this.bytes = Arrays.copyOf(this.bytes, (int) Math.min(capacity, limit));
+    }
+
+    private void checkSize(int size) throws IOException {
+      if (size > this.maxBytes) {
+        throw new IOException(String.format("Decompressed body exceeds the maximum of %s bytes", this.maxBytes));
+      }
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import com.rabbitmq.client.LongString;
+import org.apache.kafka.connect.data.Field;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.Struct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers how the value of each AMQP header key was converted the last time it was seen. Publishers tend to send
+ * the same keys with the same types on every message, so the steady state is a single map lookup followed by a
+ * direct conversion. A key whose value changes type is simply re-planned.
+ */
+final class HeaderConversionPlan {
+  private static final Logger log = LoggerFactory.getLogger(HeaderConversionPlan.class);
+
+  static final int DEFAULT_MAX_KEYS = 1024;
+
+  private static final Field FIELD_TYPE = MessageConverter.SCHEMA_HEADER_VALUE.field("type");
+  private static final ConcurrentMap<Class<?>, Plan> PLANS_BY_TYPE = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, Plan> plans = new ConcurrentHashMap<>();
+  private final int maxKeys;
+
+  HeaderConversionPlan(int maxKeys) {
+    this.maxKeys = maxKeys;
+  }
+
+  /**
+   * Converts a header value to its HeaderValue struct.
+   *
+   * @return the struct, or null if values of this type can not be represented and the header should be skipped.
+   */
+  Struct convert(String key, Object value) {
+    return plan(key, value.getClass()).convert(value);
+  }
+
+  Plan plan(String key, Class<?> type) {
+    Plan plan = this.plans.get(key);
+    if (null != plan && plan.type == type) {
+      return plan;
+    }
+    plan = PLANS_BY_TYPE.computeIfAbsent(type, Plan::of);
+    if (null == plan.field) {
+      log.warn("Could not determine the type for field '{}' type '{}', skipping", key, type.getName());
+    }
+    // Once full, keys that were never seen are converted without being cached so a publisher that puts unique
+    // header names on every message can not grow the cache without bound.
+    if (this.plans.size() < this.maxKeys || this.plans.containsKey(key)) {
+      this.plans.put(key, plan);
+    }
+    return plan;
+  }
+
+  int size() {
+    return this.plans.size();
+  }
+
+  enum Conversion {
+    IDENTITY,
+    LONG_STRING,
+    LIST
+  }
+
+  static final class Plan {
+    final Class<?> type;
+    final Conversion conversion;
+    final String typeName;
+    final Field field;
+
+    private Plan(Class<?> type, Conversion conversion, String typeName) {
+      this.type = type;
+      this.conversion = conversion;
+      this.typeName = typeName;
+      this.field = null == typeName ? null : MessageConverter.SCHEMA_HEADER_VALUE.field(typeName);
+    }
+
+    static Plan of(Class<?> type) {
+      if (LongString.class.isAssignableFrom(type)) {
+        return new Plan(type, Conversion.LONG_STRING, Schema.Type.STRING.name().toLowerCase());
+      } else if (List.class.isAssignableFrom(type)) {
+        return new Plan(type, Conversion.LIST, Schema.Type.ARRAY.name().toLowerCase());
+      } else {
+        return new Plan(type, Conversion.IDENTITY, MessageConverter.FIELD_LOOKUP.get(type));
+      }
+    }
+
+    Struct convert(Object value) {
+      if (null == this.field) {
+        return null;
+      }
+      final Object headerValue;
+      switch (this.conversion) {
+        case LONG_STRING:
+          headerValue = value.toString();
+          break;
+        case LIST:
+          final List<?> list = (List<?>) value;
+          final List<String> values = new ArrayList<>(list.size());
+          for (Object l : list) {
+            values.add(l.toString());
+          }
+          headerValue = values;
+          break;
+        default:
+          headerValue = value;
+          break;
+      }
+      return new Struct(MessageConverter.SCHEMA_HEADER_VALUE)
+          .put(FIELD_TYPE, this.typeName)
+          .put(this.field, headerValue);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import org.apache.kafka.common.utils.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Picks the Kafka partition of a message from the murmur2 hash of one of its fields, the same hash the Kafka
+ * producer applies to record keys, so every message of an entity lands on the same partition.
+ */
+public class KeyPartitioner {
+  private static final String HEADER_PREFIX = "header:";
+
+  enum Field {
+    ROUTING_KEY,
+    CORRELATION_ID,
+    MESSAGE_ID,
+    HEADER
+  }
+
+  private final Field field;
+  private final String headerName;
+  private final int partitionCount;
+
+  /**
+   * @param key one of routingKey, correlationId, messageId or header:&lt;name&gt;.
+   */
+  public KeyPartitioner(String key, int partitionCount) {
+    this.field = field(key);
+    this.headerName = Field.HEADER == this.field ? key.substring(HEADER_PREFIX.length()) : null;
+    this.partitionCount = partitionCount;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the key does not name a supported field.
+   */
+  public static void validate(String key) {
+    field(key);
+  }
+
+  static Field field(String key) {
+    if ("routingKey".equals(key)) {
+      return Field.ROUTING_KEY;
+    } else if ("correlationId".equals(key)) {
+      return Field.CORRELATION_ID;
+    } else if ("messageId".equals(key)) {
+      return Field.MESSAGE_ID;
+    } else if (key.startsWith(HEADER_PREFIX) && key.length() > HEADER_PREFIX.length()) {
+      return Field.HEADER;
+    }
+    throw new IllegalArgumentException("must be routingKey, correlationId, messageId or header:<name>.");
+  }
+
+  /**
+   * @return the partition of the message, or null if it does not have the field.
+   */
+  public Integer partition(Envelope envelope, AMQP.BasicProperties basicProperties) {
+    final String value = value(envelope, basicProperties);
+    if (null == value || value.isEmpty()) {
+      return null;
+    }
+    return partition(value);
+  }
+
+  int partition(String value) {
+    return Utils.toPositive(Utils.murmur2(value.getBytes(StandardCharsets.UTF_8))) % this.partitionCount;
+  }
+
+  private String value(Envelope envelope, AMQP.BasicProperties basicProperties) {
+    switch (this.field) {
+      case ROUTING_KEY:
+        return envelope.getRoutingKey();
+      case CORRELATION_ID:
+        return basicProperties.getCorrelationId();
+      case MESSAGE_ID:
+        return basicProperties.getMessageId();
+      default:
+        Map<String, Object> headers = basicProperties.getHeaders();
+        Object header = null == headers ? null : headers.get(this.headerName);
+        return null == header ? null : header.toString();
+    }
+  }
+}
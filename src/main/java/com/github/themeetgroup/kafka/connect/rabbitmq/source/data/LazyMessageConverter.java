@@ -0,0 +1,158 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import org.apache.kafka.connect.data.Field;
+import org.apache.kafka.connect.data.Struct;
+
+import java.util.Map;
+
+/**
+ * Produces the same records as {@link MessageConverter}, but only builds the envelope and basic properties
+ * sub-structs, including the header map, when they are read. Pipelines that only look at the body, for example with an
+ * ExtractField transformation, skip that work entirely.
+ */
+public class LazyMessageConverter extends MessageConverter {
+
+  @Override
+  public Struct value(String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] body) {
+    return new LazyMessageStruct(consumerTag, envelope, basicProperties, body);
+  }
+
+  /**
+   * {@link Struct} whose envelope and basicProperties fields are materialized on first access. Every accessor that
+   * can reach those fields materializes them first, so the struct is indistinguishable from an eagerly built one.
+   */
+  static final class LazyMessageStruct extends Struct {
+    private static final Field FIELD_ENVELOPE = SCHEMA_VALUE.field(FIELD_MESSAGE_ENVELOPE);
+    private static final Field FIELD_BASICPROPERTIES = SCHEMA_VALUE.field(FIELD_MESSAGE_BASICPROPERTIES);
+
+    private Envelope envelope;
+    private AMQP.BasicProperties basicProperties;
+
+    LazyMessageStruct(String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] body) {
+      super(SCHEMA_VALUE);
+      super.put(FIELD_MESSAGE_CONSUMERTAG, consumerTag);
+      super.put(FIELD_MESSAGE_BODY, body);
+      this.envelope = envelope;
+      this.basicProperties = basicProperties;
+    }
+
+    boolean isMaterialized() {
+      return null == this.envelope && null == this.basicProperties;
+    }
+
+    private void materialize(String fieldName) {
+      if (FIELD_MESSAGE_ENVELOPE.equals(fieldName)) {
+        materializeEnvelope();
+      } else if (FIELD_MESSAGE_BASICPROPERTIES.equals(fieldName)) {
+        materializeBasicProperties();
+      }
+    }
+
+    private void materializeEnvelope() {
+      if (null != this.envelope) {
+        Envelope envelope = this.envelope;
+        this.envelope = null;
+        super.put(FIELD_ENVELOPE, envelope(envelope));
+      }
+    }
+
+    private void materializeBasicProperties() {
+      if (null != this.basicProperties) {
+        AMQP.BasicProperties basicProperties = this.basicProperties;
+        this.basicProperties = null;
+        super.put(FIELD_BASICPROPERTIES, basicProperties(basicProperties));
+      }
+    }
+
+    private void materializeAll() {
+      materializeEnvelope();
+      materializeBasicProperties();
+    }
+
+    @Override
+    public Object get(String fieldName) {
+      materialize(fieldName);
+      return super.get(fieldName);
+    }
+
+    @Override
+    public Object get(Field field) {
+      materialize(field.name());
+      return super.get(field);
+    }
+
+    @Override
+    public Object getWithoutDefault(String fieldName) {
+      materialize(fieldName);
+      return super.getWithoutDefault(fieldName);
+    }
+
+    @Override
+    public Struct getStruct(String fieldName) {
+      materialize(fieldName);
+      return super.getStruct(fieldName);
+    }
+
+    @Override
+    public <K, V> Map<K, V> getMap(String fieldName) {
+      materialize(fieldName);
+      return super.getMap(fieldName);
+    }
+
+    @Override
+    public Struct put(String fieldName, Object value) {
+      materialize(fieldName);
+      return super.put(fieldName, value);
+    }
+
+    @Override
+    public Struct put(Field field, Object value) {
+      materialize(field.name());
+      return super.put(field, value);
+    }
+
+    @Override
+    public void validate() {
+      materializeAll();
+      super.validate();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      materializeAll();
+      if (o instanceof LazyMessageStruct) {
+        ((LazyMessageStruct) o).materializeAll();
+      }
+      return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+      materializeAll();
+      return super.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      materializeAll();
+      return super.toString();
+    }
+  }
+}
@@ -19,7 +19,6 @@ import com.google.common.collect.ImmutableMap;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.BasicProperties;
 import com.rabbitmq.client.Envelope;
-import com.rabbitmq.client.LongString;
 import org.apache.kafka.connect.data.Schema;
 import org.apache.kafka.connect.data.SchemaBuilder;
 import org.apache.kafka.connect.data.Struct;
@@ -34,7 +33,6 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.LinkedHashMap;
-import java.util.List;
 
 public class MessageConverter implements SourceMessageConverter<Struct, Struct> {
   private static final Logger log = LoggerFactory.getLogger(MessageConverter.class);
@@ -200,43 +198,21 @@ public class MessageConverter implements SourceMessageConverter<Struct, Struct>
     FIELD_LOOKUP = ImmutableMap.copyOf(fieldLookup);
   }
 
+  static final HeaderConversionPlan HEADER_PLAN = new HeaderConversionPlan(HeaderConversionPlan.DEFAULT_MAX_KEYS);
+
   static Map<String, Struct> headers(BasicProperties basicProperties) {
     Map<String, Object> input = basicProperties.getHeaders();
-    Map<String, Struct> results = new LinkedHashMap<>();
+    Map<String, Struct> results = new LinkedHashMap<>(null == input ? 0 : (int) (input.size() / 0.75f) + 1);
     if (null != input) {
       for (Map.Entry<String, Object> kvp : input.entrySet()) {
         log.trace("headers() - key = '{}' value= '{}'", kvp.getKey(), kvp.getValue());
-        final String field;
-        final Object headerValue;
-
-        if (kvp.getValue() instanceof LongString) {
-          headerValue = kvp.getValue().toString();
-        } else if (kvp.getValue() instanceof List) {
-          final List<LongString> list = (List<LongString>) kvp.getValue();
-          final List<String> values = new ArrayList<>(list.size());
-          for (LongString l : list) {
-            values.add(l.toString());
-          }
-          headerValue = values;
-        } else {
-          headerValue = kvp.getValue();
-        }
-
-        if (!FIELD_LOOKUP.containsKey(headerValue.getClass())) {
-          log.warn(
-              String.format("Could not determine the type for field '%s' type '%s', skipping", kvp.getKey(), headerValue.getClass().getName())
-          );
+        if (null == kvp.getValue()) {
           continue;
-        } else {
-          field = FIELD_LOOKUP.get(headerValue.getClass());
         }
-
-        log.trace("headers() - Storing value for header in field = '{}' as {}", field, field);
-
-        Struct value = new Struct(SCHEMA_HEADER_VALUE)
-            .put("type", field)
-            .put(field, headerValue);
-        results.put(kvp.getKey(), value);
+        Struct value = HEADER_PLAN.convert(kvp.getKey(), kvp.getValue());
+        if (null != value) {
+          results.put(kvp.getKey(), value);
+        }
       }
     }
     return results;
@@ -18,14 +18,32 @@ package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Envelope;
 import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaAndValue;
 import org.apache.kafka.connect.header.Headers;
 
+import java.util.Map;
+
 public interface SourceMessageConverter<K, V> {
 
+  /**
+   * Called once after the converter is created, with the connector settings that start with
+   * {@code message.converter.}. The prefix is removed from the keys.
+   */
+  default void configure(Map<String, ?> settings) {
+  }
+
   V value(String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] body);
 
   Schema valueSchema();
 
+  /**
+   * Converts the message to a value together with its schema. Converters whose value schema differs from message to
+   * message override this; the default combines {@link #value} and {@link #valueSchema()}.
+   */
+  default SchemaAndValue schemaAndValue(String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] body) {
+    return new SchemaAndValue(valueSchema(), value(consumerTag, envelope, basicProperties, body));
+  }
+
   K key(String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] body);
 
   Schema keySchema();
@@ -0,0 +1,204 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable source offset of a record: the delivery tag, the first delivery tag of an aggregated record and, for
+ * stream queues, the stream offset. It is a {@link Map} as Kafka Connect requires, but holds the values as primitives
+ * so building one per message allocates a single small object. Entries are only materialized when the offset is
+ * iterated, which Kafka Connect does for the latest offset of each partition when it flushes offsets.
+ *
+ * The offset also remembers the epoch of the channel the message was delivered on, which changes whenever the
+ * channel is recovered. The epoch is not one of the map's entries, so it is never written to the offset store.
+ */
+public final class SourceOffset extends AbstractMap<String, Object> {
+  public static final String DELIVERY_TAG_KEY = "deliveryTag";
+  public static final String FIRST_DELIVERY_TAG_KEY = "firstDeliveryTag";
+  public static final String OFFSET_KEY = "offset";
+  /**
+   * Epoch reported for offsets that were not built by {@link SourceRecordBuilder}.
+   */
+  public static final int UNKNOWN_EPOCH = -1;
+
+  private static final long ABSENT = -1L;
+
+  private final long deliveryTag;
+  private final long firstDeliveryTag;
+  private final long offset;
+  private final int epoch;
+
+  private SourceOffset(long deliveryTag, long firstDeliveryTag, long offset, int epoch) {
+    this.deliveryTag = deliveryTag;
+    this.firstDeliveryTag = firstDeliveryTag;
+    this.offset = offset;
+    this.epoch = epoch;
+  }
+
+  static SourceOffset of(long deliveryTag) {
+    return of(deliveryTag, ABSENT, 0);
+  }
+
+  static SourceOffset of(long deliveryTag, long offset) {
+    return of(deliveryTag, offset, 0);
+  }
+
+  /**
+   * @param offset the stream offset, or a negative value for classic queues.
+   * @param epoch the epoch of the channel the message was delivered on.
+   */
+  static SourceOffset of(long deliveryTag, long offset, int epoch) {
+    return new SourceOffset(deliveryTag, ABSENT, offset < 0L ? ABSENT : offset, epoch);
+  }
+
+  /**
+   * Offset of a record aggregating the deliveries {@code firstDeliveryTag} to {@code deliveryTag}.
+   *
+   * @param offset the stream offset of the last delivery, or a negative value for classic queues.
+   */
+  static SourceOffset aggregate(long firstDeliveryTag, long deliveryTag, long offset, int epoch) {
+    return new SourceOffset(deliveryTag, firstDeliveryTag, offset < 0L ? ABSENT : offset, epoch);
+  }
+
+  /**
+   * Reads the delivery tag from a source offset without boxing when it was built by {@link SourceRecordBuilder}.
+   */
+  public static long deliveryTag(Map<String, ?> sourceOffset) {
+    if (sourceOffset instanceof SourceOffset) {
+      return ((SourceOffset) sourceOffset).deliveryTag;
+    }
+    return ((Number) sourceOffset.get(DELIVERY_TAG_KEY)).longValue();
+  }
+
+  /**
+   * @return the first delivery tag of an aggregated record, or the delivery tag of any other record.
+   */
+  public static long firstDeliveryTag(Map<String, ?> sourceOffset) {
+    if (sourceOffset instanceof SourceOffset) {
+      SourceOffset offset = (SourceOffset) sourceOffset;
+      return ABSENT == offset.firstDeliveryTag ? offset.deliveryTag : offset.firstDeliveryTag;
+    }
+    Object firstDeliveryTag = sourceOffset.get(FIRST_DELIVERY_TAG_KEY);
+    return null == firstDeliveryTag ? deliveryTag(sourceOffset) : ((Number) firstDeliveryTag).longValue();
+  }
+
+  /**
+   * @return the epoch of the channel the record's messages were delivered on, or {@link #UNKNOWN_EPOCH}.
+   */
+  public static int epoch(Map<String, ?> sourceOffset) {
+    return sourceOffset instanceof SourceOffset ? ((SourceOffset) sourceOffset).epoch : UNKNOWN_EPOCH;
+  }
+
+  public long deliveryTag() {
+    return this.deliveryTag;
+  }
+
+  private Object value(int index) {
+    switch (index) {
+      case 0:
+        return this.deliveryTag;
+      case 1:
+        return ABSENT == this.firstDeliveryTag ? null : this.firstDeliveryTag;
+      default:
+        return ABSENT == this.offset ? null : this.offset;
+    }
+  }
+
+  private static String key(int index) {
+    switch (index) {
+      case 0:
+        return DELIVERY_TAG_KEY;
+      case 1:
+        return FIRST_DELIVERY_TAG_KEY;
+      default:
+        return OFFSET_KEY;
+    }
+  }
+
+  private static int index(Object key) {
+    if (DELIVERY_TAG_KEY.equals(key)) {
+      return 0;
+    } else if (FIRST_DELIVERY_TAG_KEY.equals(key)) {
+      return 1;
+    } else if (OFFSET_KEY.equals(key)) {
+      return 2;
+    }
+    return -1;
+  }
+
+  @Override
+  public int size() {
+    return 1 + (ABSENT == this.firstDeliveryTag ? 0 : 1) + (ABSENT == this.offset ? 0 : 1);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    int index = index(key);
+    return index >= 0 && null != value(index);
+  }
+
+  @Override
+  public Object get(Object key) {
+    int index = index(key);
+    return index < 0 ? null : value(index);
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    return new AbstractSet<Entry<String, Object>>() {
+      @Override
+      public Iterator<Entry<String, Object>> iterator() {
+        return new Iterator<Entry<String, Object>>() {
+          int index = advance(0);
+
+          private int advance(int from) {
+            int next = from;
+            while (next < 3 && null == value(next)) {
+              next++;
+            }
+            return next;
+          }
+
+          @Override
+          public boolean hasNext() {
+            return index < 3;
+          }
+
+          @Override
+          public Entry<String, Object> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            Entry<String, Object> entry = new SimpleImmutableEntry<>(key(index), value(index));
+            index = advance(index + 1);
+            return entry;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return SourceOffset.this.size();
+      }
+    };
+  }
+}
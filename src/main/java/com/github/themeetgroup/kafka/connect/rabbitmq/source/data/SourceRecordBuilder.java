@@ -15,6 +15,7 @@
  */
 package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
 
+import com.github.themeetgroup.kafka.connect.rabbitmq.source.PartitionedDestination;
 import com.github.themeetgroup.kafka.connect.rabbitmq.source.RabbitMQSourceConnectorConfig;
 import com.google.common.collect.ImmutableMap;
 import com.rabbitmq.client.AMQP;
@@ -22,16 +23,45 @@ import com.rabbitmq.client.Envelope;
 import org.apache.kafka.common.utils.SystemTime;
 import org.apache.kafka.common.utils.Time;
 import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaAndValue;
+import org.apache.kafka.connect.data.SchemaBuilder;
 import org.apache.kafka.connect.header.Headers;
 import org.apache.kafka.connect.source.SourceRecord;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SourceRecordBuilder {
 
+  static final String STREAM_OFFSET_HEADER = "x-stream-offset";
+  /**
+   * Header that keeps the contentEncoding a message was published with once its body was decompressed.
+   */
+  public static final String ORIGINAL_CONTENT_ENCODING_HEADER = "x-original-content-encoding";
+  static final int MAX_SOURCE_PARTITIONS = 10000;
+
+  /**
+   * Value of an aggregated record: the message bodies in delivery order.
+   */
+  public static final Schema AGGREGATE_VALUE_SCHEMA = SchemaBuilder.array(Schema.BYTES_SCHEMA)
+      .name("com.github.themeetgroup.kafka.connect.rabbitmq.MessageBatch")
+      .doc("The bodies of consecutive messages of a queue, in delivery order.")
+      .build();
+
   private final Time time = new SystemTime();
   private final SourceMessageConverter messageConverter;
   private final RabbitMQSourceConnectorConfig config;
+  private final BodyDecompressor decompressor;
+  private final TopicTemplate topicTemplate;
+  private final KeyPartitioner keyPartitioner;
+  private final Map<String, Integer> kafkaPartitions = new ConcurrentHashMap<>();
+  private final Map<String, Map<String, ?>> streamPartitions = new ConcurrentHashMap<>();
+  private final Map<String, Map<String, Map<String, ?>>> sourcePartitions = new ConcurrentHashMap<>();
+  private final AtomicInteger sourcePartitionCount = new AtomicInteger();
 
   public SourceRecordBuilder(RabbitMQSourceConnectorConfig config) throws ClassNotFoundException, IllegalAccessException, InstantiationException, NoSuchMethodException, InvocationTargetException {
     this.config = config;
@@ -39,27 +69,185 @@ public class SourceRecordBuilder {
     this.messageConverter = messageConverterClassName == null ?
         new MessageConverter() :
         (SourceMessageConverter) (Class.forName(messageConverterClassName).getConstructor().newInstance());
+    this.messageConverter.configure(config.originalsWithPrefix(RabbitMQSourceConnectorConfig.MESSAGE_CONVERTER_CLASSNAME_CONF + "."));
+    this.decompressor = config.decompressionEnabled ? new BodyDecompressor(config.decompressionMaxBytes) : null;
+    this.topicTemplate = null == config.kafkaTopicTemplate ? null : new TopicTemplate(config.kafkaTopicTemplate, config.kafkaTopic);
+    this.keyPartitioner = null == config.partitionKey ? null : new KeyPartitioner(config.partitionKey, config.kafkaPartitionCount);
+  }
+
+  /**
+   * @return the Kafka topic of the message, resolved from {@link RabbitMQSourceConnectorConfig#kafkaTopicTemplate}
+   * when it is set.
+   */
+  public String topic(String queue, Envelope envelope, AMQP.BasicProperties basicProperties) {
+    if (null == this.topicTemplate) {
+      return this.config.kafkaTopic;
+    }
+    return this.topicTemplate.topic(queue, envelope, basicProperties);
+  }
+
+  /**
+   * Decompresses the body according to its contentEncoding property when decompression is enabled.
+   */
+  public byte[] body(AMQP.BasicProperties basicProperties, byte[] bytes) {
+    if (null == this.decompressor) {
+      return bytes;
+    }
+    return this.decompressor.decompress(basicProperties.getContentEncoding(), bytes);
+  }
+
+  public SourceRecord sourceRecord(String queue, String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] body) {
+    return sourceRecord(queue, consumerTag, envelope, basicProperties, body, 0);
   }
 
-  public SourceRecord sourceRecord(String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] bytes) {
+  /**
+   * @param epoch the epoch of the channel the message was delivered on, see {@link SourceOffset#epoch(Map)}.
+   */
+  public SourceRecord sourceRecord(String queue, String consumerTag, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] body, int epoch) {
+    return decodedSourceRecord(queue, consumerTag, envelope, basicProperties, body, body(basicProperties, body), epoch);
+  }
+
+  /**
+   * Builds the record of a delivery whose body was already passed through {@link #body(AMQP.BasicProperties, byte[])},
+   * for callers that need the size of the decompressed body. If the body was decompressed, the record's contentEncoding
+   * is cleared and the original encoding moves to the {@link #ORIGINAL_CONTENT_ENCODING_HEADER} header.
+   *
+   * @param delivered the body as it was delivered.
+   * @param bytes the body returned by {@link #body(AMQP.BasicProperties, byte[])}.
+   */
+  public SourceRecord decodedSourceRecord(String queue, String consumerTag, Envelope envelope, AMQP.BasicProperties deliveredProperties, byte[] delivered, byte[] bytes, int epoch) {
+    final AMQP.BasicProperties basicProperties = delivered == bytes ? deliveredProperties : decompressedProperties(deliveredProperties);
     Object key = this.messageConverter.key(consumerTag, envelope, basicProperties, bytes);
     Schema keySchema = this.messageConverter.keySchema();
-    Object value = this.messageConverter.value(consumerTag, envelope, basicProperties, bytes);
-    Schema valueSchema = this.messageConverter.valueSchema();
+    SchemaAndValue value = this.messageConverter.schemaAndValue(consumerTag, envelope, basicProperties, bytes);
     Headers headers = this.messageConverter.headers(consumerTag, envelope, basicProperties, bytes);
-    String topic = this.config.kafkaTopic;
+    String topic = topic(queue, envelope, basicProperties);
+
+    final Map<String, ?> sourcePartition;
+    final Map<String, ?> sourceOffset;
+    if (this.config.streamQueues) {
+      sourcePartition = this.streamPartitions.computeIfAbsent(queue, SourceRecordBuilder::streamPartition);
+      sourceOffset = SourceOffset.of(envelope.getDeliveryTag(), streamOffset(basicProperties), epoch);
+    } else {
+      sourcePartition = sourcePartition(queue, envelope.getRoutingKey());
+      sourceOffset = SourceOffset.of(envelope.getDeliveryTag(), -1L, epoch);
+    }
 
     return new SourceRecord(
-        ImmutableMap.of("routingKey", envelope.getRoutingKey()),
-        ImmutableMap.of("deliveryTag", envelope.getDeliveryTag()),
+        sourcePartition,
+        sourceOffset,
         topic,
-        null,
+        kafkaPartition(queue, envelope, basicProperties),
         keySchema,
         key,
-        valueSchema,
-        value,
+        value.schema(),
+        value.value(),
         null == basicProperties.getTimestamp() ? this.time.milliseconds() : basicProperties.getTimestamp().getTime(),
         headers
     );
   }
+
+  static AMQP.BasicProperties decompressedProperties(AMQP.BasicProperties basicProperties) {
+    final Map<String, Object> headers = null == basicProperties.getHeaders() ?
+        new HashMap<>() :
+        new HashMap<>(basicProperties.getHeaders());
+    headers.put(ORIGINAL_CONTENT_ENCODING_HEADER, basicProperties.getContentEncoding());
+    return basicProperties.builder()
+        .contentEncoding(null)
+        .headers(headers)
+        .build();
+  }
+
+  /**
+   * Builds a single record carrying the bodies of consecutive deliveries of a queue. Its offset spans the delivery
+   * tags from {@code first} to {@code last}, so committing it completes every delivery in the aggregate. All of them
+   * must have been delivered in the same channel {@code epoch}.
+   */
+  public SourceRecord aggregateRecord(String queue, Envelope first, Envelope last, AMQP.BasicProperties lastBasicProperties, List<byte[]> bodies, int epoch) {
+    final Map<String, ?> sourcePartition;
+    final long streamOffset;
+    if (this.config.streamQueues) {
+      sourcePartition = this.streamPartitions.computeIfAbsent(queue, SourceRecordBuilder::streamPartition);
+      streamOffset = streamOffset(lastBasicProperties);
+    } else {
+      sourcePartition = sourcePartition(queue, last.getRoutingKey());
+      streamOffset = -1L;
+    }
+
+    return new SourceRecord(
+        sourcePartition,
+        SourceOffset.aggregate(first.getDeliveryTag(), last.getDeliveryTag(), streamOffset, epoch),
+        topic(queue, last, lastBasicProperties),
+        kafkaPartition(queue, last, lastBasicProperties),
+        null,
+        null,
+        AGGREGATE_VALUE_SCHEMA,
+        bodies,
+        null == lastBasicProperties.getTimestamp() ? this.time.milliseconds() : lastBasicProperties.getTimestamp().getTime()
+    );
+  }
+
+  /**
+   * @return the Kafka partition of the message: the hash of {@link RabbitMQSourceConnectorConfig#partitionKey} when it
+   * is set, otherwise the partition of the queue.
+   */
+  public Integer kafkaPartition(String queue, Envelope envelope, AMQP.BasicProperties basicProperties) {
+    if (null != this.keyPartitioner) {
+      return this.keyPartitioner.partition(envelope, basicProperties);
+    }
+    return kafkaPartition(queue);
+  }
+
+  /**
+   * Maps a partition of the partitioned destination to the Kafka partition with the same index, modulo
+   * {@link RabbitMQSourceConnectorConfig#kafkaPartitionCount}, so that ordering per partition is preserved. Returns
+   * null, letting the producer choose, for any other queue.
+   */
+  Integer kafkaPartition(String queue) {
+    if (null == this.config.partitionedDestination) {
+      return null;
+    }
+    int partition = this.kafkaPartitions.computeIfAbsent(queue, q -> {
+      int index = PartitionedDestination.partitionIndex(this.config.partitionedDestination, q);
+      return index < 0 ? index : index % this.config.kafkaPartitionCount;
+    });
+    return partition < 0 ? null : partition;
+  }
+
+  /**
+   * Returns a shared source partition map for the queue and routing key. The same few routing keys repeat on most
+   * messages, so the maps are interned instead of being rebuilt for every record. Once
+   * {@link #MAX_SOURCE_PARTITIONS} maps are cached, new combinations are built without caching.
+   */
+  Map<String, ?> sourcePartition(String queue, String routingKey) {
+    Map<String, Map<String, ?>> byRoutingKey = this.sourcePartitions.get(queue);
+    if (null == byRoutingKey) {
+      byRoutingKey = this.sourcePartitions.computeIfAbsent(queue, q -> new ConcurrentHashMap<>());
+    }
+    Map<String, ?> sourcePartition = byRoutingKey.get(routingKey);
+    if (null != sourcePartition) {
+      return sourcePartition;
+    }
+    sourcePartition = ImmutableMap.of("queue", queue, "routingKey", routingKey);
+    if (this.sourcePartitionCount.get() < MAX_SOURCE_PARTITIONS && null == byRoutingKey.putIfAbsent(routingKey, sourcePartition)) {
+      this.sourcePartitionCount.incrementAndGet();
+    }
+    return sourcePartition;
+  }
+
+  /**
+   * Source partition of a stream queue. Offsets are committed per stream so a restarted task can resume it.
+   */
+  public static Map<String, ?> streamPartition(String queue) {
+    return ImmutableMap.of("queue", queue);
+  }
+
+  /**
+   * @return the stream offset of the message, or -1 if it has none.
+   */
+  static long streamOffset(AMQP.BasicProperties basicProperties) {
+    Map<String, Object> headers = basicProperties.getHeaders();
+    Object offset = null == headers ? null : headers.get(STREAM_OFFSET_HEADER);
+    return offset instanceof Number ? ((Number) offset).longValue() : -1L;
+  }
 }
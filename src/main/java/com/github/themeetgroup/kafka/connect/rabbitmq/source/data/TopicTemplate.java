@@ -0,0 +1,192 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the Kafka topic of a message from a template such as {@code rabbitmq.${exchange}.${routingKey}}. Supported
+ * variables are {@code ${routingKey}}, {@code ${exchange}}, {@code ${queue}} and {@code ${header:<name>}}.
+ *
+ * Characters that are not legal in a topic name are replaced with {@code _}. A message that lacks a value for one of
+ * the variables goes to the default topic. Resolved topics are cached by their variable values, so the same few
+ * topics are not rebuilt for every message; once {@link #MAX_CACHED_TOPICS} are cached, new topics are built without
+ * caching.
+ */
+public class TopicTemplate {
+  static final int MAX_CACHED_TOPICS = 10000;
+  static final int MAX_TOPIC_LENGTH = 249;
+  private static final Pattern VARIABLE = Pattern.compile("\\$\\{([^}]*)}");
+  private static final String HEADER_PREFIX = "header:";
+  private static final char KEY_SEPARATOR = '\u0000';
+
+  enum Source {
+    ROUTING_KEY,
+    EXCHANGE,
+    QUEUE,
+    HEADER
+  }
+
+  private final String defaultTopic;
+  private final String[] literals;
+  private final Source[] sources;
+  private final String[] headerNames;
+  private final String fixedTopic;
+  private final Map<String, String> topics = new ConcurrentHashMap<>();
+
+  /**
+   * @throws IllegalArgumentException if the template contains an unknown variable.
+   */
+  public TopicTemplate(String template, String defaultTopic) {
+    this.defaultTopic = defaultTopic;
+    List<String> literals = new ArrayList<>();
+    List<Source> sources = new ArrayList<>();
+    List<String> headerNames = new ArrayList<>();
+    Matcher matcher = VARIABLE.matcher(template);
+    int start = 0;
+    while (matcher.find()) {
+      literals.add(template.substring(start, matcher.start()));
+      String variable = matcher.group(1).trim();
+      if ("routingKey".equals(variable)) {
+        sources.add(Source.ROUTING_KEY);
+        headerNames.add(null);
+      } else if ("exchange".equals(variable)) {
+        sources.add(Source.EXCHANGE);
+        headerNames.add(null);
+      } else if ("queue".equals(variable)) {
+        sources.add(Source.QUEUE);
+        headerNames.add(null);
+      } else if (variable.startsWith(HEADER_PREFIX) && variable.length() > HEADER_PREFIX.length()) {
+        sources.add(Source.HEADER);
+        headerNames.add(variable.substring(HEADER_PREFIX.length()));
+      } else {
+        throw new IllegalArgumentException(
+            String.format("Unknown variable '${%s}'. Use ${routingKey}, ${exchange}, ${queue} or ${header:<name>}.", variable)
+        );
+      }
+      start = matcher.end();
+    }
+    literals.add(template.substring(start));
+    this.literals = literals.toArray(new String[0]);
+    this.sources = sources.toArray(new Source[0]);
+    this.headerNames = headerNames.toArray(new String[0]);
+    this.fixedTopic = this.sources.length == 0 ? sanitize(template) : null;
+  }
+
+  /**
+   * @return the topic of the message.
+   */
+  public String topic(String queue, Envelope envelope, AMQP.BasicProperties basicProperties) {
+    if (null != this.fixedTopic) {
+      return this.fixedTopic;
+    }
+    if (this.sources.length == 1) {
+      // The common case: the single value is the cache key, so nothing is built for a cached topic.
+      final String value = value(0, queue, envelope, basicProperties);
+      if (null == value) {
+        return this.defaultTopic;
+      }
+      return topic(value, () -> sanitize(this.literals[0] + value + this.literals[1]));
+    }
+    final String[] values = new String[this.sources.length];
+    final StringBuilder key = new StringBuilder();
+    for (int i = 0; i < values.length; i++) {
+      values[i] = value(i, queue, envelope, basicProperties);
+      if (null == values[i]) {
+        return this.defaultTopic;
+      }
+      key.append(values[i]).append(KEY_SEPARATOR);
+    }
+    return topic(key.toString(), () -> {
+      StringBuilder topic = new StringBuilder(this.literals[0]);
+      for (int i = 0; i < values.length; i++) {
+        topic.append(values[i]).append(this.literals[i + 1]);
+      }
+      return sanitize(topic.toString());
+    });
+  }
+
+  int cachedTopics() {
+    return this.topics.size();
+  }
+
+  private String topic(String key, Supplier<String> supplier) {
+    String topic = this.topics.get(key);
+    if (null != topic) {
+      return topic;
+    }
+    topic = supplier.get();
+    if (this.topics.size() < MAX_CACHED_TOPICS) {
+      String existing = this.topics.putIfAbsent(key, topic);
+      if (null != existing) {
+        return existing;
+      }
+    }
+    return topic;
+  }
+
+  private String value(int index, String queue, Envelope envelope, AMQP.BasicProperties basicProperties) {
+    final String value;
+    switch (this.sources[index]) {
+      case ROUTING_KEY:
+        value = envelope.getRoutingKey();
+        break;
+      case EXCHANGE:
+        value = envelope.getExchange();
+        break;
+      case QUEUE:
+        value = queue;
+        break;
+      default:
+        Map<String, Object> headers = basicProperties.getHeaders();
+        Object header = null == headers ? null : headers.get(this.headerNames[index]);
+        value = null == header ? null : header.toString();
+        break;
+    }
+    return null == value || value.isEmpty() ? null : value;
+  }
+
+  /**
+   * Replaces characters that are not legal in a Kafka topic name and truncates the name to the maximum length.
+   */
+  static String sanitize(String topic) {
+    final int length = Math.min(topic.length(), MAX_TOPIC_LENGTH);
+    StringBuilder builder = null;
+    for (int i = 0; i < length; i++) {
+      char c = topic.charAt(i);
+      boolean legal = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '_' || c == '-';
+      if (!legal && null == builder) {
+        builder = new StringBuilder(length).append(topic, 0, i);
+      }
+      if (null != builder) {
+        builder.append(legal ? c : '_');
+      }
+    }
+    if (null != builder) {
+      return builder.toString();
+    }
+    return length == topic.length() ? topic : topic.substring(0, length);
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq;
+
+import com.github.themeetgroup.kafka.connect.rabbitmq.source.RabbitMQSourceConnectorConfig;
+import com.google.common.collect.ImmutableMap;
+import org.apache.kafka.common.config.ConfigException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ConnectionExecutorsTest {
+
+  static Map<String, String> settings(String executor) {
+    return ImmutableMap.<String, String>builder()
+        .put(RabbitMQSourceConnectorConfig.TOPIC_CONF, "topic")
+        .put(RabbitMQSourceConnectorConfig.QUEUE_CONF, "queue")
+        .put(RabbitMQSourceConnectorConfig.MESSAGE_CONVERTER_CLASSNAME_CONF, "converter")
+        .put(RabbitMQSourceConnectorConfig.EXCHANGE_CONF, "exchange")
+        .put(RabbitMQSourceConnectorConfig.ROUTING_KEY_CONF, "#")
+        .put(CommonRabbitMQConnectorConfig.EXECUTOR_CONFIG, executor)
+        .put(CommonRabbitMQConnectorConfig.EXECUTOR_THREADS_CONFIG, "3")
+        .build();
+  }
+
+  @Test
+  public void sharedExecutorIsReused() {
+    assertSame(ConnectionExecutors.shared(3), ConnectionExecutors.shared(3));
+    assertSame(ConnectionExecutors.heartbeat(), ConnectionExecutors.heartbeat());
+  }
+
+  @Test
+  public void sourceRejectsSharedExecutor() {
+    Map<String, String> settings = settings(CommonRabbitMQConnectorConfig.EXECUTOR_SHARED);
+    assertThrows(ConfigException.class, () -> new RabbitMQSourceConnectorConfig(settings));
+    List<String> errors = RabbitMQSourceConnectorConfig.config().validate(settings).stream()
+        .filter(value -> CommonRabbitMQConnectorConfig.EXECUTOR_CONFIG.equals(value.name()))
+        .findFirst()
+        .get()
+        .errorMessages();
+    assertEquals(1, errors.size());
+  }
+
+  @Test
+  public void virtualExecutor() throws Exception {
+    Map<String, String> settings = settings(CommonRabbitMQConnectorConfig.EXECUTOR_VIRTUAL);
+    if (!ConnectionExecutors.virtualThreadsSupported()) {
+      assertThrows(ConfigException.class, () -> new RabbitMQSourceConnectorConfig(settings));
+      List<String> errors = RabbitMQSourceConnectorConfig.config().validate(settings).stream()
+          .filter(value -> CommonRabbitMQConnectorConfig.EXECUTOR_CONFIG.equals(value.name()))
+          .findFirst()
+          .get()
+          .errorMessages();
+      assertEquals(1, errors.size());
+      return;
+    }
+    new RabbitMQSourceConnectorConfig(settings);
+    assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(ConnectionExecutors.virtualThreadFactory().newThread(() -> { })));
+  }
+}
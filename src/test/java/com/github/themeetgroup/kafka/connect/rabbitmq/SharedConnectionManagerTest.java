@@ -0,0 +1,158 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq;
+
+import com.github.themeetgroup.kafka.connect.rabbitmq.SharedConnectionManager.Role;
+import com.github.themeetgroup.kafka.connect.rabbitmq.source.RabbitMQSourceConnectorConfig;
+import com.rabbitmq.client.Connection;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SharedConnectionManagerTest {
+  List<Connection> opened;
+  SharedConnectionManager manager;
+
+  static RabbitMQSourceConnectorConfig config(String host, String maxChannels) {
+    Map<String, String> settings = new HashMap<>();
+    settings.put(RabbitMQSourceConnectorConfig.TOPIC_CONF, "topic");
+    settings.put(RabbitMQSourceConnectorConfig.QUEUE_CONF, "queue");
+    settings.put(RabbitMQSourceConnectorConfig.MESSAGE_CONVERTER_CLASSNAME_CONF, "converter");
+    settings.put(RabbitMQSourceConnectorConfig.EXCHANGE_CONF, "exchange");
+    settings.put(RabbitMQSourceConnectorConfig.ROUTING_KEY_CONF, "#");
+    settings.put(CommonRabbitMQConnectorConfig.HOST_CONFIG, host);
+    settings.put(CommonRabbitMQConnectorConfig.CONNECTION_MAX_CHANNELS_CONFIG, maxChannels);
+    return new RabbitMQSourceConnectorConfig(settings);
+  }
+
+  Connection open() {
+    Connection connection = mock(Connection.class);
+    when(connection.isOpen()).thenReturn(true);
+    synchronized (this.opened) {
+      this.opened.add(connection);
+    }
+    return connection;
+  }
+
+  @BeforeEach
+  public void before() {
+    this.opened = new ArrayList<>();
+    this.manager = new SharedConnectionManager(config -> open());
+  }
+
+  @Test
+  public void closesConnectionWithLastLease() throws Exception {
+    RabbitMQSourceConnectorConfig config = config("broker", "0");
+    ConnectionLease first = this.manager.acquire(config, Role.SINK, 1);
+    ConnectionLease second = this.manager.acquire(config, Role.SINK, 1);
+    assertEquals(1, this.opened.size());
+    assertSame(first.connection(), second.connection());
+
+    first.close();
+    first.close();
+    verify(second.connection(), never()).close();
+    second.close();
+    verify(this.opened.get(0)).close();
+
+    this.manager.acquire(config, Role.SINK, 1);
+    assertEquals(2, this.opened.size());
+  }
+
+  @Test
+  public void opensAnotherConnectionAtChannelLimit() throws Exception {
+    RabbitMQSourceConnectorConfig config = config("broker", "3");
+    ConnectionLease first = this.manager.acquire(config, Role.SINK, 2);
+    ConnectionLease second = this.manager.acquire(config, Role.SINK, 2);
+    ConnectionLease third = this.manager.acquire(config, Role.SINK, 1);
+    assertNotSame(first.connection(), second.connection());
+    assertSame(first.connection(), third.connection());
+  }
+
+  @Test
+  public void neverSharesSourceConnections() throws Exception {
+    RabbitMQSourceConnectorConfig config = config("broker", "0");
+    ConnectionLease sink = this.manager.acquire(config, Role.SINK, 1);
+    ConnectionLease admin = this.manager.acquire(config, Role.ADMIN, 1);
+    ConnectionLease task0 = this.manager.acquire(config, Role.SOURCE, 1);
+    ConnectionLease task1 = this.manager.acquire(config, Role.SOURCE, 1);
+    assertEquals(4, this.opened.size());
+    assertNotSame(sink.connection(), admin.connection());
+    assertNotSame(task0.connection(), task1.connection());
+
+    task0.close();
+    verify(task0.connection()).close();
+    verify(task1.connection(), never()).close();
+  }
+
+  @Test
+  public void opensConnectionsOutsideTheLock() throws Exception {
+    CountDownLatch opening = new CountDownLatch(1);
+    CountDownLatch unreachable = new CountDownLatch(1);
+    this.manager = new SharedConnectionManager(config -> {
+      if ("unreachable".equals(config.host)) {
+        opening.countDown();
+        try {
+          unreachable.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        throw new IOException("Connection refused");
+      }
+      return open();
+    });
+    RabbitMQSourceConnectorConfig slow = config("unreachable", "0");
+    CompletableFuture<ConnectionLease> first = CompletableFuture.supplyAsync(() -> acquire(slow));
+    assertTrue(opening.await(10, TimeUnit.SECONDS));
+    CompletableFuture<ConnectionLease> waiting = CompletableFuture.supplyAsync(() -> acquire(slow));
+
+    // Another broker is not held up by the connection being opened.
+    this.manager.acquire(config("broker", "0"), Role.SINK, 1).close();
+    verify(this.opened.get(0)).close();
+
+    unreachable.countDown();
+    assertThrows(Exception.class, first::join);
+    assertThrows(Exception.class, waiting::join);
+    // The failed attempt is forgotten, the next lease tries again.
+    assertThrows(IOException.class, () -> this.manager.acquire(slow, Role.SINK, 1));
+  }
+
+  ConnectionLease acquire(CommonRabbitMQConnectorConfig config) {
+    try {
+      return this.manager.acquire(config, Role.SINK, 1);
+    } catch (IOException | TimeoutException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
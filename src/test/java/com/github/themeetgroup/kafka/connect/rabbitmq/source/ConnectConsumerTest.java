@@ -0,0 +1,384 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import com.github.themeetgroup.kafka.connect.rabbitmq.source.data.SourceOffset;
+import com.google.common.collect.ImmutableMap;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+public class ConnectConsumerTest {
+  Channel channel;
+  SourceRecordBuffer records;
+  SourceTaskMetrics metrics;
+
+  static Map<String, String> settings(Map<String, String> overrides) {
+    Map<String, String> settings = new HashMap<>();
+    settings.put(RabbitMQSourceConnectorConfig.TOPIC_CONF, "topic");
+    settings.put(RabbitMQSourceConnectorConfig.QUEUE_CONF, "queue");
+    settings.put(RabbitMQSourceConnectorConfig.MESSAGE_CONVERTER_CLASSNAME_CONF, "com.github.themeetgroup.kafka.connect.rabbitmq.source.data.BytesSourceMessageConverter");
+    settings.put(RabbitMQSourceConnectorConfig.EXCHANGE_CONF, "exchange");
+    settings.put(RabbitMQSourceConnectorConfig.ROUTING_KEY_CONF, "#");
+    settings.putAll(overrides);
+    return settings;
+  }
+
+  ConnectConsumer consumer(String queue, Map<String, String> overrides) throws Exception {
+    return new ConnectConsumer(queue, this.channel, this.records, new RabbitMQSourceConnectorConfig(settings(overrides)), null, this.metrics);
+  }
+
+  @BeforeEach
+  public void before() {
+    this.channel = mock(Channel.class);
+    this.records = new SourceRecordBuffer(100, Long.MAX_VALUE);
+    this.metrics = new SourceTaskMetrics(new Metrics(), "connector", "0");
+  }
+
+  @AfterEach
+  public void after() {
+    this.metrics.close();
+  }
+
+  double metric(String name, String queue) {
+    Map<String, String> tags = new LinkedHashMap<>(this.metrics.taskTags());
+    tags.put("queue", queue);
+    MetricName metricName = this.metrics.metrics().metricName(name, SourceTaskMetrics.QUEUE_GROUP, tags);
+    return (Double) this.metrics.metrics().metrics().get(metricName).metricValue();
+  }
+
+  @Test
+  public void requeuesUncommittedDeliveriesOnShutdown() throws Exception {
+    when(this.channel.isOpen()).thenReturn(true);
+    ConnectConsumer consumer = consumer("queue", ImmutableMap.of());
+    consumer.consumerTag("consumer-1");
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder().build();
+    for (long tag = 1L; tag <= 5L; tag++) {
+      consumer.handleDelivery("consumer-1", new Envelope(tag, false, "exchange", "rk"), basicProperties, new byte[1]);
+    }
+    consumer.complete(1L);
+    consumer.complete(2L);
+    consumer.complete(4L);
+
+    consumer.cancel();
+    consumer.ack();
+    consumer.requeueUnacked();
+
+    InOrder inOrder = inOrder(this.channel);
+    inOrder.verify(this.channel).basicCancel("consumer-1");
+    inOrder.verify(this.channel).basicAck(2L, true);
+    inOrder.verify(this.channel).basicAck(4L, false);
+    inOrder.verify(this.channel).basicNack(5L, true, true);
+
+    // A late commit of a requeued delivery must not be acknowledged again.
+    consumer.complete(3L);
+    consumer.ack();
+    verify(this.channel, never()).basicAck(5L, true);
+  }
+
+  @Test
+  public void ignoresDeliveriesOfRecoveredChannel() throws Exception {
+    this.channel = mock(Channel.class, withSettings().extraInterfaces(Recoverable.class));
+    ConnectConsumer consumer = consumer("queue", ImmutableMap.of());
+    ArgumentCaptor<RecoveryListener> listener = ArgumentCaptor.forClass(RecoveryListener.class);
+    verify((Recoverable) this.channel).addRecoveryListener(listener.capture());
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder().build();
+    for (long tag = 1L; tag <= 3L; tag++) {
+      consumer.handleDelivery("tag", new Envelope(tag, false, "exchange", "rk"), basicProperties, new byte[1]);
+    }
+    List<SourceRecord> polled = new ArrayList<>();
+    this.records.drain(polled, 0L, 1, Long.MAX_VALUE, 0L);
+
+    listener.getValue().handleRecovery((Recoverable) this.channel);
+    assertEquals(0, this.records.size());
+    assertTrue(consumer.isStale(SourceOffset.epoch(polled.get(0).sourceOffset())));
+
+    // The client numbers the deliveries of the recovered channel above those of the old one.
+    consumer.handleDelivery("tag", new Envelope(4L, true, "exchange", "rk"), basicProperties, new byte[1]);
+    List<SourceRecord> batch = drain();
+    assertEquals(1, batch.size());
+    assertFalse(consumer.isStale(SourceOffset.epoch(batch.get(0).sourceOffset())));
+    consumer.complete(4L);
+    consumer.ack();
+    verify(this.channel).basicAck(4L, true);
+    verify(this.channel, never()).basicAck(1L, true);
+  }
+
+  @Test
+  public void dropsDeliveryWaitingForBufferWhenChannelRecovers() throws Exception {
+    this.channel = mock(Channel.class, withSettings().extraInterfaces(Recoverable.class));
+    this.records = new SourceRecordBuffer(1, Long.MAX_VALUE);
+    ConnectConsumer consumer = consumer("queue", ImmutableMap.of());
+    ArgumentCaptor<RecoveryListener> listener = ArgumentCaptor.forClass(RecoveryListener.class);
+    verify((Recoverable) this.channel).addRecoveryListener(listener.capture());
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder().build();
+    consumer.handleDelivery("tag", new Envelope(1L, false, "exchange", "rk"), basicProperties, new byte[1]);
+
+    ExecutorService dispatch = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> blocked = dispatch.submit(() -> {
+        consumer.handleDelivery("tag", new Envelope(2L, false, "exchange", "rk"), basicProperties, new byte[1]);
+        return null;
+      });
+      assertThrows(TimeoutException.class, () -> blocked.get(100L, TimeUnit.MILLISECONDS));
+
+      // Purging the old epoch frees the buffer, the waiting delivery of the old epoch must not take its place.
+      listener.getValue().handleRecovery((Recoverable) this.channel);
+      blocked.get(5L, TimeUnit.SECONDS);
+      assertEquals(0, this.records.size());
+    } finally {
+      dispatch.shutdownNow();
+    }
+  }
+
+  @Test
+  public void recoversWhileAggregateWaitsForBuffer() throws Exception {
+    this.channel = mock(Channel.class, withSettings().extraInterfaces(Recoverable.class));
+    this.records = new SourceRecordBuffer(1, Long.MAX_VALUE);
+    // The buffer is full with a record of another queue, so purging this queue's records frees nothing.
+    SourceRecord other = new SourceRecord(ImmutableMap.of("queue", "other"), ImmutableMap.of("deliveryTag", 1L), "topic", null, null);
+    assertTrue(this.records.put(other, 1));
+    ConnectConsumer consumer = consumer("queue", ImmutableMap.of(RabbitMQSourceConnectorConfig.AGGREGATION_MAX_MESSAGES_CONF, "2"));
+    ArgumentCaptor<RecoveryListener> listener = ArgumentCaptor.forClass(RecoveryListener.class);
+    verify((Recoverable) this.channel).addRecoveryListener(listener.capture());
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder().build();
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<?> dispatch = executor.submit(() -> {
+        consumer.handleDelivery("tag", new Envelope(1L, false, "exchange", "rk"), basicProperties, new byte[1]);
+        consumer.handleDelivery("tag", new Envelope(2L, false, "exchange", "rk"), basicProperties, new byte[1]);
+        return null;
+      });
+      assertThrows(TimeoutException.class, () -> dispatch.get(100L, TimeUnit.MILLISECONDS), "the full aggregate waits for room");
+
+      Future<?> recovery = executor.submit(() -> listener.getValue().handleRecovery((Recoverable) this.channel));
+      recovery.get(5L, TimeUnit.SECONDS);
+      dispatch.get(5L, TimeUnit.SECONDS);
+      // The poll thread is not locked out of the consumer either.
+      consumer.ack();
+
+      List<SourceRecord> batch = drain();
+      assertEquals(1, batch.size());
+      assertEquals(other, batch.get(0));
+
+      consumer.handleDelivery("tag", new Envelope(3L, true, "exchange", "rk"), basicProperties, new byte[1]);
+      consumer.handleDelivery("tag", new Envelope(4L, true, "exchange", "rk"), basicProperties, new byte[1]);
+      batch = drain();
+      assertEquals(1, batch.size());
+      assertEquals(4L, SourceOffset.deliveryTag(batch.get(0).sourceOffset()));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void rejectsUnconvertibleDeliveries() throws Exception {
+    ConnectConsumer consumer = consumer("errors-queue", ImmutableMap.of(
+        RabbitMQSourceConnectorConfig.DECOMPRESSION_ENABLED_CONF, "true",
+        RabbitMQSourceConnectorConfig.ERRORS_TOLERANCE_CONF, RabbitMQSourceConnectorConfig.ERRORS_TOLERANCE_ALL
+    ));
+    AMQP.BasicProperties valid = new AMQP.BasicProperties.Builder().build();
+    AMQP.BasicProperties corrupt = new AMQP.BasicProperties.Builder().contentEncoding("gzip").build();
+    for (long tag = 1L; tag <= 6L; tag++) {
+      AMQP.BasicProperties basicProperties = tag == 2L || tag == 3L || tag == 5L ? corrupt : valid;
+      consumer.handleDelivery("tag", new Envelope(tag, false, "exchange", "rk"), basicProperties, new byte[] {1, 2, 3});
+    }
+    assertEquals(3, drain().size());
+
+    consumer.complete(1L);
+    consumer.complete(4L);
+    consumer.complete(6L);
+    consumer.ack();
+    InOrder inOrder = inOrder(this.channel);
+    inOrder.verify(this.channel).basicAck(1L, true);
+    inOrder.verify(this.channel).basicNack(3L, true, false);
+    inOrder.verify(this.channel).basicAck(4L, true);
+    inOrder.verify(this.channel).basicNack(5L, true, false);
+    inOrder.verify(this.channel).basicAck(6L, true);
+    assertEquals(3.0, metric("conversion-errors-total", "errors-queue"));
+    assertEquals(3.0, metric("rejected-total", "errors-queue"));
+  }
+
+  @Test
+  public void failsOnUnconvertibleDeliveriesByDefault() throws Exception {
+    ConnectConsumer consumer = consumer("queue", ImmutableMap.of(RabbitMQSourceConnectorConfig.DECOMPRESSION_ENABLED_CONF, "true"));
+    AMQP.BasicProperties corrupt = new AMQP.BasicProperties.Builder().contentEncoding("gzip").build();
+    consumer.handleDelivery("tag", new Envelope(1L, false, "exchange", "rk"), corrupt, new byte[] {1, 2, 3});
+    assertThrows(ConnectException.class, this::drain);
+    consumer.ack();
+    verify(this.channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+    verify(this.channel, never()).basicAck(anyLong(), anyBoolean());
+  }
+
+  @Test
+  public void chargesBufferForDecompressedBody() throws Exception {
+    this.records = new SourceRecordBuffer(100, 64 * 1024);
+    ConnectConsumer consumer = consumer("queue", ImmutableMap.of(RabbitMQSourceConnectorConfig.DECOMPRESSION_ENABLED_CONF, "true"));
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+      gzip.write(new byte[100 * 1024]);
+    }
+    assertTrue(compressed.size() < 1024);
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder().contentEncoding("gzip").build();
+    consumer.handleDelivery("tag", new Envelope(1L, false, "exchange", "rk"), basicProperties, compressed.toByteArray());
+
+    assertEquals(100L * 1024L, this.records.bytes());
+    assertFalse(this.records.offer(new SourceRecord(null, null, "topic", null, null), 1), "the decompressed body exceeds buffer.max.bytes");
+  }
+
+  @Test
+  public void decompressesOnConversionThreads() throws Exception {
+    List<Runnable> conversions = new ArrayList<>();
+    ConnectConsumer consumer = new ConnectConsumer("queue", this.channel, this.records, new RabbitMQSourceConnectorConfig(settings(ImmutableMap.of(
+        RabbitMQSourceConnectorConfig.DECOMPRESSION_ENABLED_CONF, "true",
+        RabbitMQSourceConnectorConfig.CONVERSION_THREADS_CONF, "1"
+    ))), conversions::add, this.metrics);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+      gzip.write(new byte[100 * 1024]);
+    }
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder().contentEncoding("gzip").build();
+    consumer.handleDelivery("tag", new Envelope(1L, false, "exchange", "rk"), basicProperties, compressed.toByteArray());
+    assertEquals(1, conversions.size());
+    assertEquals(0L, this.records.bytes());
+
+    conversions.get(0).run();
+    assertEquals(100L * 1024L, this.records.bytes());
+  }
+
+  @Test
+  public void recordsMetrics() throws Exception {
+    ConnectConsumer consumer = consumer("metrics-queue", ImmutableMap.of());
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder().build();
+    for (long tag = 1L; tag <= 3L; tag++) {
+      consumer.handleDelivery("tag", new Envelope(tag, false, "exchange", "rk"), basicProperties, new byte[10]);
+    }
+    assertEquals(3.0, metric("deliveries-total", "metrics-queue"));
+    assertEquals(30.0, metric("delivered-bytes-total", "metrics-queue"));
+    assertEquals(3.0, metric("unacked", "metrics-queue"));
+    assertTrue(metric("conversion-time-max-us", "metrics-queue") > 0.0);
+
+    consumer.complete(1L, 2L);
+    consumer.ack();
+    assertEquals(1.0, metric("unacked", "metrics-queue"));
+    assertTrue(metric("ack-latency-max", "metrics-queue") >= 0.0);
+  }
+
+  List<SourceRecord> drain() throws InterruptedException {
+    List<SourceRecord> batch = new ArrayList<>();
+    this.records.drain(batch, 0L);
+    return batch;
+  }
+
+  @Test
+  public void dropsCommittedRedeliveries() throws Exception {
+    ConnectConsumer consumer = consumer("dedup-queue", ImmutableMap.of(RabbitMQSourceConnectorConfig.DEDUP_ENABLED_CONF, "true"));
+    AMQP.BasicProperties first = new AMQP.BasicProperties.Builder().messageId("a").build();
+    AMQP.BasicProperties second = new AMQP.BasicProperties.Builder().messageId("b").build();
+    consumer.handleDelivery("tag", new Envelope(1L, false, "exchange", "rk"), first, new byte[1]);
+    consumer.handleDelivery("tag", new Envelope(2L, false, "exchange", "rk"), second, new byte[1]);
+    assertEquals(2, drain().size());
+    consumer.complete(1L);
+
+    // After a restart "a" was committed and is dropped, "b" never was and is produced again.
+    ConnectConsumer restarted = consumer("dedup-queue", ImmutableMap.of(RabbitMQSourceConnectorConfig.DEDUP_ENABLED_CONF, "true"));
+    restarted.handleDelivery("tag", new Envelope(1L, true, "exchange", "rk"), first, new byte[1]);
+    restarted.handleDelivery("tag", new Envelope(2L, true, "exchange", "rk"), second, new byte[1]);
+    List<SourceRecord> batch = drain();
+    assertEquals(1, batch.size());
+    assertEquals("b", batch.get(0).key());
+
+    restarted.complete(2L);
+    restarted.ack();
+    verify(this.channel).basicAck(2L, true);
+  }
+
+  @Test
+  public void keepsRedeliveriesWithoutDedup() throws Exception {
+    ConnectConsumer consumer = consumer("queue", ImmutableMap.of());
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder().messageId("a").build();
+    consumer.handleDelivery("tag", new Envelope(1L, false, "exchange", "rk"), basicProperties, new byte[1]);
+    consumer.complete(1L);
+    consumer.handleDelivery("tag", new Envelope(2L, true, "exchange", "rk"), basicProperties, new byte[1]);
+    assertEquals(2, drain().size());
+  }
+
+  @Test
+  public void aggregatesDeliveries() throws Exception {
+    ConnectConsumer consumer = consumer("queue", ImmutableMap.of(
+        RabbitMQSourceConnectorConfig.AGGREGATION_MAX_MESSAGES_CONF, "3",
+        RabbitMQSourceConnectorConfig.AGGREGATION_LINGER_MS_CONF, "200"
+    ));
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder().build();
+    for (long deliveryTag = 1; deliveryTag <= 4; deliveryTag++) {
+      consumer.handleDelivery("tag", new Envelope(deliveryTag, false, "exchange", "rk"), basicProperties, new byte[] {(byte) deliveryTag});
+    }
+
+    List<SourceRecord> batch = drain();
+    assertEquals(1, batch.size());
+    SourceRecord aggregate = batch.get(0);
+    assertEquals(3, ((List<?>) aggregate.value()).size());
+    assertEquals(ImmutableMap.of("deliveryTag", 3L, "firstDeliveryTag", 1L), aggregate.sourceOffset());
+
+    Thread.sleep(250L);
+    consumer.flushExpiredAggregate();
+    batch = drain();
+    assertEquals(1, batch.size());
+    assertEquals(1, ((List<?>) batch.get(0).value()).size());
+
+    consumer.complete(1L, 3L);
+    consumer.ack();
+    verify(this.channel).basicAck(3L, true);
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConversionSequencerTest {
+  ExecutorService executor;
+
+  @BeforeEach
+  public void before() {
+    this.executor = Executors.newFixedThreadPool(4);
+  }
+
+  @AfterEach
+  public void after() throws InterruptedException {
+    this.executor.shutdownNow();
+    this.executor.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  static SourceRecord record(long deliveryTag) {
+    return new SourceRecord(ImmutableMap.of("queue", "queue"), ImmutableMap.of("deliveryTag", deliveryTag), "topic", null, null);
+  }
+
+  static ConversionSequencer.Converted converted(long deliveryTag) {
+    return new ConversionSequencer.Converted(record(deliveryTag), 1);
+  }
+
+  @Test
+  public void preservesDeliveryOrder() throws InterruptedException {
+    final int count = 500;
+    SourceRecordBuffer records = new SourceRecordBuffer(count, Long.MAX_VALUE);
+    ConversionSequencer sequencer = new ConversionSequencer("queue", this.executor, records, record -> false, 16);
+    final Random random = new Random(42);
+    for (long i = 1; i <= count; i++) {
+      final long deliveryTag = i;
+      final int delayMicros = random.nextInt(500);
+      sequencer.submit(() -> {
+        TimeUnit.MICROSECONDS.sleep(delayMicros);
+        return converted(deliveryTag);
+      });
+    }
+
+    List<SourceRecord> batch = new ArrayList<>();
+    while (batch.size() < count) {
+      assertTrue(records.drain(batch, 5000L), "records were not converted in time");
+    }
+    for (int i = 0; i < count; i++) {
+      assertEquals(i + 1L, batch.get(i).sourceOffset().get("deliveryTag"));
+    }
+    assertEquals(0, sequencer.inFlight());
+  }
+
+  @Test
+  public void failsBufferOnConversionError() throws InterruptedException {
+    SourceRecordBuffer records = new SourceRecordBuffer(10, Long.MAX_VALUE);
+    ConversionSequencer sequencer = new ConversionSequencer("queue", this.executor, records, record -> false, 16);
+    sequencer.submit(() -> converted(1L));
+    sequencer.submit(() -> {
+      throw new IllegalStateException("poison");
+    });
+
+    List<SourceRecord> batch = new ArrayList<>();
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (batch.isEmpty() && System.currentTimeMillis() < deadline) {
+      records.drain(batch, 100L);
+    }
+    assertEquals(1, batch.size());
+    assertThrows(ConnectException.class, () -> records.drain(new ArrayList<>(), 5000L));
+  }
+}
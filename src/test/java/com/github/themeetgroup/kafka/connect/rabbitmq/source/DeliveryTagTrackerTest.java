@@ -0,0 +1,75 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DeliveryTagTrackerTest {
+
+  DeliveryTagTracker tracker;
+
+  @BeforeEach
+  public void before() {
+    this.tracker = new DeliveryTagTracker();
+    for (long tag = 1; tag <= 5; tag++) {
+      this.tracker.delivered(tag);
+    }
+  }
+
+  @Test
+  public void nothingCommitted() {
+    assertEquals(0L, this.tracker.ackable());
+  }
+
+  @Test
+  public void contiguous() {
+    this.tracker.complete(1L);
+    this.tracker.complete(2L);
+    assertEquals(2L, this.tracker.ackable());
+  }
+
+  @Test
+  public void gapHoldsBackAck() {
+    this.tracker.complete(1L);
+    this.tracker.complete(3L);
+    this.tracker.complete(4L);
+    assertEquals(1L, this.tracker.ackable());
+    this.tracker.complete(2L);
+    assertEquals(4L, this.tracker.ackable());
+  }
+
+  @Test
+  public void alreadyAcked() {
+    this.tracker.complete(1L);
+    this.tracker.complete(2L);
+    this.tracker.acked(2L);
+    assertEquals(0L, this.tracker.ackable());
+    this.tracker.complete(3L);
+    assertEquals(3L, this.tracker.ackable());
+  }
+
+  @Test
+  public void allCommitted() {
+    for (long tag = 5; tag >= 1; tag--) {
+      this.tracker.complete(tag);
+    }
+    assertEquals(5L, this.tracker.ackable());
+    assertEquals(0, this.tracker.pendingCount());
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import com.github.themeetgroup.kafka.connect.rabbitmq.ConnectionLease;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.impl.AMQImpl;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PartitionedDestinationTest {
+
+  @Test
+  public void partitionNames() {
+    assertEquals("orders-3", PartitionedDestination.partitionName("orders", 3));
+    assertEquals(Arrays.asList("orders-0", "orders-1", "orders-2"), PartitionedDestination.partitionNames("orders", 3));
+    assertEquals(Collections.emptyList(), PartitionedDestination.partitionNames("orders", 0));
+  }
+
+  @Test
+  public void partitionIndex() {
+    assertEquals(0, PartitionedDestination.partitionIndex("orders", "orders-0"));
+    assertEquals(12, PartitionedDestination.partitionIndex("orders", "orders-12"));
+    assertEquals(1, PartitionedDestination.partitionIndex("orders-eu", "orders-eu-1"));
+    assertEquals(-1, PartitionedDestination.partitionIndex("orders", "orders"));
+    assertEquals(-1, PartitionedDestination.partitionIndex("orders", "orders-"));
+    assertEquals(-1, PartitionedDestination.partitionIndex("orders", "orders-eu-1"));
+    assertEquals(-1, PartitionedDestination.partitionIndex("orders", "invoices-1"));
+  }
+
+  @Test
+  public void discoversPartitionsUntilOneIsMissing() throws IOException {
+    Channel channel = mock(Channel.class);
+    when(channel.queueDeclarePassive(anyString())).thenAnswer(invocation -> {
+      String queue = invocation.getArgument(0);
+      if (PartitionedDestination.partitionIndex("orders", queue) >= 3) {
+        throw new IOException("NOT_FOUND - no queue '" + queue + "'");
+      }
+      return new AMQImpl.Queue.DeclareOk(queue, 0, 0);
+    });
+    ConnectionLease connection = mock(ConnectionLease.class);
+    when(connection.createChannel()).thenReturn(channel);
+
+    assertEquals(Arrays.asList("orders-0", "orders-1", "orders-2"), PartitionedDestination.discover(connection, "orders"));
+    verify(channel).queueDeclarePassive("orders-3");
+    verify(channel, never()).queueDeclarePassive("orders-4");
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class PrefetchControllerTest {
+
+  static final long TARGET = 500L;
+  static final int MIN = 10;
+  static final int MAX = 1000;
+
+  @Test
+  public void shrinkOnFullBuffer() {
+    assertEquals(200, PrefetchController.nextPrefetch(400, 0.9, 10L, TARGET, MIN, MAX));
+  }
+
+  @Test
+  public void shrinkOnSlowCommits() {
+    assertEquals(200, PrefetchController.nextPrefetch(400, 0.1, 800L, TARGET, MIN, MAX));
+  }
+
+  @Test
+  public void shrinkStopsAtMin() {
+    assertEquals(MIN, PrefetchController.nextPrefetch(12, 0.9, 10L, TARGET, MIN, MAX));
+  }
+
+  @Test
+  public void growWhenIdle() {
+    assertEquals(500, PrefetchController.nextPrefetch(400, 0.1, 10L, TARGET, MIN, MAX));
+  }
+
+  @Test
+  public void growStopsAtMax() {
+    assertEquals(MAX, PrefetchController.nextPrefetch(900, 0.1, 10L, TARGET, MIN, MAX));
+  }
+
+  @Test
+  public void holdInBetween() {
+    assertEquals(400, PrefetchController.nextPrefetch(400, 0.6, 10L, TARGET, MIN, MAX));
+    assertEquals(400, PrefetchController.nextPrefetch(400, 0.1, 300L, TARGET, MIN, MAX));
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class QueueAssignorTest {
+
+  static final List<String> QUEUES = ImmutableList.of("a", "b", "c", "d", "e");
+
+  @Test
+  public void roundRobin() {
+    List<List<String>> actual = QueueAssignor.roundRobin(QUEUES, 2);
+    assertEquals(ImmutableList.of(ImmutableList.of("a", "c", "e"), ImmutableList.of("b", "d")), actual);
+  }
+
+  @Test
+  public void roundRobinMoreTasksThanQueues() {
+    List<List<String>> actual = QueueAssignor.roundRobin(ImmutableList.of("a", "b"), 4);
+    assertEquals(2, actual.size(), "every task should get at least one queue.");
+  }
+
+  @Test
+  public void byDepth() {
+    Map<String, Long> depths = ImmutableMap.of("a", 1000L, "b", 10L, "c", 600L, "d", 500L, "e", 0L);
+    List<List<String>> actual = QueueAssignor.byDepth(QUEUES, depths, 2);
+    assertEquals(ImmutableList.of(ImmutableList.of("a", "b", "e"), ImmutableList.of("c", "d")), actual);
+  }
+
+  @Test
+  public void byDepthUnknownQueues() {
+    List<List<String>> actual = QueueAssignor.byDepth(QUEUES, ImmutableMap.of(), 5);
+    assertEquals(5, actual.size());
+    for (List<String> queues : actual) {
+      assertEquals(1, queues.size());
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.kafka.common.config.ConfigException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class RabbitMQSourceConnectorConfigTest {
+
+  @Test
+  public void streamOffset() {
+    assertEquals("first", RabbitMQSourceConnectorConfig.streamOffset("first"));
+    assertEquals("next", RabbitMQSourceConnectorConfig.streamOffset(" next "));
+    assertEquals(12345L, RabbitMQSourceConnectorConfig.streamOffset("12345"));
+    assertEquals(new Date(1500691965123L), RabbitMQSourceConnectorConfig.streamOffset("timestamp:1500691965123"));
+  }
+
+  @Test
+  public void streamOffsetInvalid() {
+    assertThrows(ConfigException.class, () -> RabbitMQSourceConnectorConfig.streamOffset("yesterday"));
+  }
+
+  @Test
+  public void queuePrefetchCounts() {
+    assertEquals(
+        ImmutableMap.of("orders", 500, "audit", 10),
+        RabbitMQSourceConnectorConfig.queuePrefetchCounts(ImmutableList.of("orders:500", "audit:10"))
+    );
+  }
+
+  @Test
+  public void queuePrefetchCountsInvalid() {
+    assertThrows(ConfigException.class, () -> RabbitMQSourceConnectorConfig.queuePrefetchCounts(ImmutableList.of("orders")));
+    assertThrows(ConfigException.class, () -> RabbitMQSourceConnectorConfig.queuePrefetchCounts(ImmutableList.of("orders:many")));
+  }
+
+  @Test
+  public void streamQueuesRejectChannelPrefetch() {
+    assertThrows(ConfigException.class, () -> new RabbitMQSourceConnectorConfig(ConnectConsumerTest.settings(ImmutableMap.of(
+        RabbitMQSourceConnectorConfig.QUEUE_TYPE_CONF, RabbitMQSourceConnectorConfig.QUEUE_TYPE_STREAM,
+        RabbitMQSourceConnectorConfig.PREFETCH_COUNT_CONF, "100",
+        RabbitMQSourceConnectorConfig.PREFETCH_ADAPTIVE_CONF, "true"
+    ))));
+    assertThrows(ConfigException.class, () -> new RabbitMQSourceConnectorConfig(ConnectConsumerTest.settings(ImmutableMap.of(
+        RabbitMQSourceConnectorConfig.QUEUE_TYPE_CONF, RabbitMQSourceConnectorConfig.QUEUE_TYPE_STREAM,
+        RabbitMQSourceConnectorConfig.PREFETCH_COUNT_CONF, "100",
+        RabbitMQSourceConnectorConfig.PREFETCH_GLOBAL_CONF, "true"
+    ))));
+  }
+
+  @Test
+  public void pollLimitsMustFitTheBuffer() {
+    assertThrows(ConfigException.class, () -> new RabbitMQSourceConnectorConfig(ConnectConsumerTest.settings(ImmutableMap.of(
+        RabbitMQSourceConnectorConfig.BUFFER_MAX_RECORDS_CONF, "100",
+        RabbitMQSourceConnectorConfig.POLL_MAX_RECORDS_CONF, "500"
+    ))));
+    assertThrows(ConfigException.class, () -> new RabbitMQSourceConnectorConfig(ConnectConsumerTest.settings(ImmutableMap.of(
+        RabbitMQSourceConnectorConfig.BUFFER_MAX_BYTES_CONF, "1024",
+        RabbitMQSourceConnectorConfig.POLL_MAX_BYTES_CONF, "4096"
+    ))));
+    RabbitMQSourceConnectorConfig config = new RabbitMQSourceConnectorConfig(ConnectConsumerTest.settings(ImmutableMap.of(
+        RabbitMQSourceConnectorConfig.BUFFER_MAX_RECORDS_CONF, "100",
+        RabbitMQSourceConnectorConfig.POLL_MAX_RECORDS_CONF, "100"
+    )));
+    assertEquals(100, config.pollMaxRecords);
+  }
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import com.google.common.collect.ImmutableMap;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.impl.AMQImpl;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.connect.connector.ConnectorContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RabbitMQSourceConnectorTest {
+  private static final List<String> QUEUES = Arrays.asList("a", "b", "c", "d");
+
+  /**
+   * Queue depths served by the mocked control channel.
+   */
+  final Map<String, Integer> depths = new HashMap<>();
+  Channel channel;
+  ConnectorContext context;
+  Metrics metrics;
+  RabbitMQSourceConnector connector;
+
+  @BeforeEach
+  public void before() throws IOException {
+    this.channel = mock(Channel.class);
+    when(this.channel.isOpen()).thenReturn(true);
+    when(this.channel.queueDeclarePassive(anyString())).thenAnswer(invocation -> {
+      String queue = invocation.getArgument(0);
+      return new AMQImpl.Queue.DeclareOk(queue, this.depths.getOrDefault(queue, 0), 1);
+    });
+    this.context = mock(ConnectorContext.class);
+    this.metrics = new Metrics();
+
+    this.connector = new RabbitMQSourceConnector();
+    this.connector.initialize(this.context);
+    this.connector.start(ImmutableMap.<String, String>builder()
+        .put(RabbitMQSourceConnectorConfig.TOPIC_CONF, "topic")
+        .put(RabbitMQSourceConnectorConfig.QUEUE_CONF, String.join(",", QUEUES))
+        .put(RabbitMQSourceConnectorConfig.QUEUE_ASSIGNMENT_CONF, RabbitMQSourceConnectorConfig.QUEUE_ASSIGNMENT_QUEUE_DEPTH)
+        .put(RabbitMQSourceConnectorConfig.MESSAGE_CONVERTER_CLASSNAME_CONF, "com.github.themeetgroup.kafka.connect.rabbitmq.source.data.BytesSourceMessageConverter")
+        .put(RabbitMQSourceConnectorConfig.EXCHANGE_CONF, "exchange")
+        .put(RabbitMQSourceConnectorConfig.ROUTING_KEY_CONF, "#")
+        .build()
+    );
+    this.connector.monitor(new QueueDepthMonitor("connector", QUEUES, () -> this.channel, this.metrics));
+  }
+
+  @AfterEach
+  public void after() {
+    this.connector.stop();
+    this.metrics.close();
+  }
+
+  double metric(String name, Map<String, String> tags) {
+    MetricName metricName = this.metrics.metricName(name, QueueDepthMonitor.CONNECTOR_GROUP, tags);
+    return (Double) this.metrics.metrics().get(metricName).metricValue();
+  }
+
+  @Test
+  public void assignsEachStreamToOneTask() {
+    RabbitMQSourceConnector connector = new RabbitMQSourceConnector();
+    connector.initialize(this.context);
+    connector.start(ImmutableMap.<String, String>builder()
+        .put(RabbitMQSourceConnectorConfig.TOPIC_CONF, "topic")
+        .put(RabbitMQSourceConnectorConfig.QUEUE_CONF, "a,b")
+        .put(RabbitMQSourceConnectorConfig.QUEUE_TYPE_CONF, RabbitMQSourceConnectorConfig.QUEUE_TYPE_STREAM)
+        .put(RabbitMQSourceConnectorConfig.PREFETCH_COUNT_CONF, "100")
+        .put(RabbitMQSourceConnectorConfig.MESSAGE_CONVERTER_CLASSNAME_CONF, "com.github.themeetgroup.kafka.connect.rabbitmq.source.data.BytesSourceMessageConverter")
+        .put(RabbitMQSourceConnectorConfig.EXCHANGE_CONF, "exchange")
+        .put(RabbitMQSourceConnectorConfig.ROUTING_KEY_CONF, "#")
+        .build()
+    );
+    List<Map<String, String>> taskConfigs = connector.taskConfigs(3);
+    assertEquals(2, taskConfigs.size());
+    assertEquals("a", taskConfigs.get(0).get(RabbitMQSourceConnectorConfig.QUEUE_CONF));
+    assertEquals("b", taskConfigs.get(1).get(RabbitMQSourceConnectorConfig.QUEUE_CONF));
+    connector.stop();
+  }
+
+  @Test
+  public void assignsEachPartitionToOneTask() {
+    RabbitMQSourceConnector connector = new RabbitMQSourceConnector();
+    connector.initialize(this.context);
+    connector.start(ImmutableMap.<String, String>builder()
+        .put(RabbitMQSourceConnectorConfig.TOPIC_CONF, "topic")
+        .put(RabbitMQSourceConnectorConfig.PARTITIONED_DESTINATION_CONF, "orders")
+        .put(RabbitMQSourceConnectorConfig.PARTITION_COUNT_CONF, "5")
+        .put(RabbitMQSourceConnectorConfig.KAFKA_PARTITION_COUNT_CONF, "5")
+        .put(RabbitMQSourceConnectorConfig.MESSAGE_CONVERTER_CLASSNAME_CONF, "com.github.themeetgroup.kafka.connect.rabbitmq.source.data.BytesSourceMessageConverter")
+        .put(RabbitMQSourceConnectorConfig.EXCHANGE_CONF, "exchange")
+        .put(RabbitMQSourceConnectorConfig.ROUTING_KEY_CONF, "#")
+        .build()
+    );
+    List<Map<String, String>> taskConfigs = connector.taskConfigs(2);
+    assertEquals(2, taskConfigs.size());
+    assertEquals("orders-0,orders-2,orders-4", taskConfigs.get(0).get(RabbitMQSourceConnectorConfig.QUEUE_CONF));
+    assertEquals("orders-1,orders-3", taskConfigs.get(1).get(RabbitMQSourceConnectorConfig.QUEUE_CONF));
+    connector.stop();
+  }
+
+  @Test
+  public void publishesQueueDepths() {
+    this.depths.put("a", 10);
+    this.depths.put("b", 5);
+    this.connector.checkQueueDepths();
+    assertEquals(10.0, metric("queue-depth", ImmutableMap.of("connector", "connector", "queue", "a")));
+    assertEquals(1.0, metric("queue-consumers", ImmutableMap.of("connector", "connector", "queue", "a")));
+    assertEquals(15.0, metric("queue-depth-total", ImmutableMap.of("connector", "connector")));
+  }
+
+  @Test
+  public void reconfiguresWhenBacklogSkews() {
+    QUEUES.forEach(queue -> this.depths.put(queue, 100));
+    this.connector.checkQueueDepths();
+    List<Map<String, String>> taskConfigs = this.connector.taskConfigs(2);
+    assertEquals(2, taskConfigs.size());
+    verify(this.context, never()).requestTaskReconfiguration();
+
+    // Both queues of one task back up while the other task's queues drain.
+    List<String> first = Arrays.asList(taskConfigs.get(0).get(RabbitMQSourceConnectorConfig.QUEUE_CONF).split(","));
+    QUEUES.forEach(queue -> this.depths.put(queue, first.contains(queue) ? 10000 : 0));
+    this.connector.checkQueueDepths();
+    verify(this.context, times(1)).requestTaskReconfiguration();
+
+    // No further requests until the framework asked for the new assignment.
+    this.connector.checkQueueDepths();
+    verify(this.context, times(1)).requestTaskReconfiguration();
+
+    this.connector.taskConfigs(2);
+    this.connector.checkQueueDepths();
+    verify(this.context, times(1)).requestTaskReconfiguration();
+  }
+
+  @Test
+  public void waitsForCooldownBetweenRebalances() {
+    QUEUES.forEach(queue -> this.depths.put(queue, 100));
+    this.connector.checkQueueDepths(0L);
+    List<Map<String, String>> taskConfigs = this.connector.taskConfigs(2);
+    List<String> first = Arrays.asList(taskConfigs.get(0).get(RabbitMQSourceConnectorConfig.QUEUE_CONF).split(","));
+    QUEUES.forEach(queue -> this.depths.put(queue, first.contains(queue) ? 10000 : 0));
+    this.connector.checkQueueDepths(1000L);
+    verify(this.context, times(1)).requestTaskReconfiguration();
+
+    // The new assignment is skewed the other way round before the cooldown has passed.
+    taskConfigs = this.connector.taskConfigs(2);
+    List<String> second = Arrays.asList(taskConfigs.get(0).get(RabbitMQSourceConnectorConfig.QUEUE_CONF).split(","));
+    QUEUES.forEach(queue -> this.depths.put(queue, second.contains(queue) ? 10000 : 0));
+    this.connector.checkQueueDepths(2000L);
+    verify(this.context, times(1)).requestTaskReconfiguration();
+
+    this.connector.checkQueueDepths(1000L + 300000L);
+    verify(this.context, times(2)).requestTaskReconfiguration();
+  }
+
+  @Test
+  public void requiresMinimumImprovement() {
+    List<List<String>> current = Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "d"));
+    // The best assignment only reduces the most loaded task from 1200 to 1000 messages.
+    assertFalse(this.connector.rebalanceNeeded(current, ImmutableMap.of("a", 999L, "b", 199L, "c", 0L, "d", 0L)));
+    assertTrue(this.connector.rebalanceNeeded(current, ImmutableMap.of("a", 999L, "b", 999L, "c", 0L, "d", 0L)));
+  }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import com.github.themeetgroup.kafka.connect.rabbitmq.ConnectionLease;
+import com.github.themeetgroup.kafka.connect.rabbitmq.SharedConnectionManager;
+import com.github.themeetgroup.kafka.connect.rabbitmq.source.data.SourceRecordBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.apache.kafka.connect.source.SourceTaskContext;
+import org.apache.kafka.connect.storage.OffsetStorageReader;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RabbitMQSourceTaskTest {
+  OffsetStorageReader offsetStorageReader;
+  ConnectionLease connection;
+  Channel orders;
+  Channel audit;
+  RabbitMQSourceTask task;
+
+  @BeforeEach
+  public void before() throws Exception {
+    this.offsetStorageReader = mock(OffsetStorageReader.class);
+    SourceTaskContext context = mock(SourceTaskContext.class);
+    when(context.offsetStorageReader()).thenReturn(this.offsetStorageReader);
+    this.orders = channel("orders");
+    this.audit = channel("audit");
+    this.connection = mock(ConnectionLease.class);
+    when(this.connection.createChannel()).thenReturn(this.orders, this.audit);
+    SharedConnectionManager connections = mock(SharedConnectionManager.class);
+    when(connections.acquire(any(), eq(SharedConnectionManager.Role.SOURCE), anyInt())).thenReturn(this.connection);
+    this.task = new RabbitMQSourceTask(connections);
+    this.task.initialize(context);
+  }
+
+  static Channel channel(String queue) throws IOException {
+    Channel channel = mock(Channel.class);
+    when(channel.isOpen()).thenReturn(true);
+    when(channel.basicConsume(eq(queue), eq(false), anyMap(), any(ConnectConsumer.class))).thenReturn("consumer-" + queue);
+    return channel;
+  }
+
+  static Map<String, String> queueSettings() {
+    return ConnectConsumerTest.settings(ImmutableMap.of(
+        RabbitMQSourceConnectorConfig.QUEUE_CONF, "orders,audit",
+        RabbitMQSourceConnectorConfig.QUEUE_PREFETCH_COUNT_CONF, "orders:500",
+        RabbitMQSourceConnectorConfig.PREFETCH_COUNT_CONF, "10"
+    ));
+  }
+
+  static RabbitMQSourceConnectorConfig streamConfig() {
+    return new RabbitMQSourceConnectorConfig(ConnectConsumerTest.settings(ImmutableMap.of(
+        RabbitMQSourceConnectorConfig.QUEUE_TYPE_CONF, RabbitMQSourceConnectorConfig.QUEUE_TYPE_STREAM,
+        RabbitMQSourceConnectorConfig.PREFETCH_COUNT_CONF, "100",
+        RabbitMQSourceConnectorConfig.STREAM_OFFSET_CONF, "first"
+    )));
+  }
+
+  @Test
+  public void resumesStreamAfterCommittedOffset() {
+    when(this.offsetStorageReader.offset(SourceRecordBuilder.streamPartition("stream")))
+        .thenReturn(Collections.singletonMap("offset", 42L));
+    Map<String, Object> arguments = this.task.consumerArguments(streamConfig(), "stream");
+    assertEquals(Collections.singletonMap("x-stream-offset", 43L), arguments);
+  }
+
+  @Test
+  public void readsNewStreamFromConfiguredOffset() {
+    Map<String, Object> arguments = this.task.consumerArguments(streamConfig(), "stream");
+    assertEquals(Collections.singletonMap("x-stream-offset", "first"), arguments);
+  }
+
+  @Test
+  public void startsOneConsumerPerChannel() throws Exception {
+    this.task.start(queueSettings());
+    try {
+      InOrder orders = inOrder(this.orders);
+      orders.verify(this.orders).queueDeclare(eq("orders"), eq(true), eq(false), eq(false), anyMap());
+      orders.verify(this.orders).queueBind("orders", "exchange", "#");
+      orders.verify(this.orders).basicQos(500, false);
+      orders.verify(this.orders).basicConsume(eq("orders"), eq(false), anyMap(), any(ConnectConsumer.class));
+
+      InOrder audit = inOrder(this.audit);
+      audit.verify(this.audit).queueDeclare(eq("audit"), eq(true), eq(false), eq(false), anyMap());
+      audit.verify(this.audit).basicQos(10, false);
+      audit.verify(this.audit).basicConsume(eq("audit"), eq(false), anyMap(), any(ConnectConsumer.class));
+
+      verify(this.orders, never()).basicConsume(eq("audit"), anyBoolean(), anyMap(), any(ConnectConsumer.class));
+      verify(this.audit, never()).basicConsume(eq("orders"), anyBoolean(), anyMap(), any(ConnectConsumer.class));
+    } finally {
+      this.task.stop();
+    }
+    verify(this.orders).basicCancel("consumer-orders");
+    verify(this.audit).basicCancel("consumer-audit");
+    verify(this.connection).close();
+  }
+
+  @Test
+  public void stopsConsumersWhenAQueueFails() throws Exception {
+    when(this.audit.queueDeclare(eq("audit"), anyBoolean(), anyBoolean(), anyBoolean(), anyMap()))
+        .thenThrow(new IOException("PRECONDITION_FAILED - inequivalent arg 'x-message-ttl'"));
+    assertThrows(ConnectException.class, () -> this.task.start(queueSettings()));
+
+    verify(this.orders).basicCancel("consumer-orders");
+    verify(this.audit, never()).basicConsume(anyString(), anyBoolean(), anyMap(), any(ConnectConsumer.class));
+    verify(this.audit, never()).basicQos(anyInt(), anyBoolean());
+    verify(this.connection).close();
+  }
+
+  @Test
+  public void finishesStopOnTaskThread() throws Exception {
+    this.task.start(queueSettings());
+    ExecutorService herder = Executors.newSingleThreadExecutor();
+    try {
+      herder.submit(() -> this.task.stop()).get(5L, TimeUnit.SECONDS);
+    } finally {
+      herder.shutdownNow();
+    }
+    verify(this.orders).basicCancel("consumer-orders");
+    verify(this.connection, never()).close();
+
+    assertNull(this.task.poll());
+    verify(this.connection).close();
+    assertNull(this.task.poll());
+    this.task.commit();
+    verify(this.connection).close();
+  }
+
+  @Test
+  public void ignoresCommitsOnClosedChannel() throws Exception {
+    Map<String, String> settings = queueSettings();
+    settings.put(RabbitMQSourceConnectorConfig.ACK_BATCH_SIZE_CONF, "1");
+    settings.put(RabbitMQSourceConnectorConfig.DRAIN_TIMEOUT_CONF, "10");
+    this.task.start(settings);
+    ArgumentCaptor<ConnectConsumer> consumer = ArgumentCaptor.forClass(ConnectConsumer.class);
+    verify(this.orders).basicConsume(eq("orders"), eq(false), anyMap(), consumer.capture());
+    consumer.getValue().handleDelivery("consumer-orders", new Envelope(1L, false, "exchange", "rk"), new AMQP.BasicProperties(), new byte[1]);
+    consumer.getValue().handleDelivery("consumer-orders", new Envelope(2L, false, "exchange", "rk"), new AMQP.BasicProperties(), new byte[1]);
+    List<SourceRecord> batch = this.task.poll();
+    assertEquals(2, batch.size());
+
+    doThrow(new AlreadyClosedException(new ShutdownSignalException(false, true, null, this.orders)))
+        .when(this.orders).basicAck(anyLong(), anyBoolean());
+    this.task.commitRecord(batch.get(0));
+
+    this.task.stop();
+    this.task.commitRecord(batch.get(1));
+    verify(this.orders, atLeastOnce()).basicAck(1L, true);
+    verify(this.orders, never()).basicAck(2L, true);
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RedeliveryDeduplicatorTest {
+
+  static RabbitMQSourceConnectorConfig config(String header, int cacheSize) {
+    return new RabbitMQSourceConnectorConfig(ConnectConsumerTest.settings(ImmutableMap.of(
+        RabbitMQSourceConnectorConfig.DEDUP_ENABLED_CONF, "true",
+        RabbitMQSourceConnectorConfig.DEDUP_HEADER_CONF, header,
+        RabbitMQSourceConnectorConfig.DEDUP_CACHE_SIZE_CONF, Integer.toString(cacheSize)
+    )));
+  }
+
+  @Test
+  public void disabled() {
+    assertNull(RedeliveryDeduplicator.forQueue(new RabbitMQSourceConnectorConfig(ConnectConsumerTest.settings(ImmutableMap.of())), "queue"));
+  }
+
+  @Test
+  public void sharedWhileReferenced() {
+    RabbitMQSourceConnectorConfig config = config("", 100);
+    RedeliveryDeduplicator first = RedeliveryDeduplicator.forQueue(config, "shared", 0L);
+    RedeliveryDeduplicator second = RedeliveryDeduplicator.forQueue(config, "shared", 0L);
+    assertSame(first, second);
+
+    first.release(0L);
+    RedeliveryDeduplicator.forQueue(config, "other", RedeliveryDeduplicator.RETENTION_MS).release(RedeliveryDeduplicator.RETENTION_MS);
+    assertSame(second, RedeliveryDeduplicator.forQueue(config, "shared", RedeliveryDeduplicator.RETENTION_MS));
+    second.release(0L);
+    second.release(0L);
+  }
+
+  @Test
+  public void droppedAfterRetention() {
+    RabbitMQSourceConnectorConfig config = config("", 100);
+    RedeliveryDeduplicator first = RedeliveryDeduplicator.forQueue(config, "restarted", 0L);
+    first.committed("a");
+    first.release(1000L);
+
+    // A task restarting within the retention picks up the keys committed before the restart.
+    RedeliveryDeduplicator restarted = RedeliveryDeduplicator.forQueue(config, "restarted", 1000L + RedeliveryDeduplicator.RETENTION_MS - 1);
+    assertSame(first, restarted);
+    assertTrue(restarted.isCommitted("a"));
+    restarted.release(2000L);
+
+    RedeliveryDeduplicator later = RedeliveryDeduplicator.forQueue(config, "restarted", 2000L + RedeliveryDeduplicator.RETENTION_MS);
+    assertNotSame(first, later);
+    assertFalse(later.isCommitted("a"));
+    later.release(3000L);
+  }
+
+  @Test
+  public void separatesHeadersAndCacheSizes() {
+    RedeliveryDeduplicator byMessageId = RedeliveryDeduplicator.forQueue(config("", 100), "keyed", 0L);
+    RedeliveryDeduplicator byHeader = RedeliveryDeduplicator.forQueue(config("event-id", 100), "keyed", 0L);
+    RedeliveryDeduplicator larger = RedeliveryDeduplicator.forQueue(config("", 1000), "keyed", 0L);
+    assertNotSame(byMessageId, byHeader);
+    assertNotSame(byMessageId, larger);
+    byMessageId.release(0L);
+    byHeader.release(0L);
+    larger.release(0L);
+  }
+}
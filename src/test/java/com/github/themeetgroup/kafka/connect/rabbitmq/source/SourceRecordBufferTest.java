@@ -0,0 +1,205 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.github.themeetgroup.kafka.connect.rabbitmq.source.ConversionSequencerTest.record;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SourceRecordBufferTest {
+
+  /**
+   * Starts a producer that puts one more record into a buffer that is already full.
+   */
+  static Future<Boolean> blockedPut(ExecutorService executor, SourceRecordBuffer buffer, long deliveryTag, int size) {
+    Future<Boolean> put = executor.submit(() -> buffer.put(record(deliveryTag), size));
+    assertThrows(TimeoutException.class, () -> put.get(100L, TimeUnit.MILLISECONDS), "put must block while the buffer is full");
+    return put;
+  }
+
+  @Test
+  public void putBlocksWhileFullAndResumesOnDrain() throws Exception {
+    SourceRecordBuffer buffer = new SourceRecordBuffer(2, Long.MAX_VALUE);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      assertTrue(buffer.put(record(1L), 1));
+      assertTrue(buffer.put(record(2L), 1));
+      assertFalse(buffer.offer(record(3L), 1));
+      Future<Boolean> put = blockedPut(executor, buffer, 3L, 1);
+
+      List<SourceRecord> batch = new ArrayList<>();
+      assertTrue(buffer.drain(batch, 0L, 1, Long.MAX_VALUE, 0L));
+      assertTrue(put.get(5L, TimeUnit.SECONDS));
+      assertEquals(2, buffer.size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void putBlocksOnByteBound() throws Exception {
+    SourceRecordBuffer buffer = new SourceRecordBuffer(100, 100L);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      assertTrue(buffer.put(record(1L), 60));
+      assertFalse(buffer.offer(record(2L), 41));
+      assertTrue(buffer.offer(record(2L), 40));
+      Future<Boolean> put = blockedPut(executor, buffer, 3L, 1);
+
+      List<SourceRecord> batch = new ArrayList<>();
+      assertTrue(buffer.drain(batch, 0L));
+      assertTrue(put.get(5L, TimeUnit.SECONDS));
+      assertEquals(1L, buffer.bytes());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void closeReleasesBlockedProducers() throws Exception {
+    SourceRecordBuffer buffer = new SourceRecordBuffer(1, Long.MAX_VALUE);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      assertTrue(buffer.put(record(1L), 1));
+      Future<Boolean> put = blockedPut(executor, buffer, 2L, 1);
+      buffer.close();
+      assertFalse(put.get(5L, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void failReleasesBlockedProducers() throws Exception {
+    SourceRecordBuffer buffer = new SourceRecordBuffer(1, Long.MAX_VALUE);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      assertTrue(buffer.put(record(1L), 1));
+      Future<Boolean> put = blockedPut(executor, buffer, 2L, 1);
+      buffer.fail(new IllegalStateException("conversion failed"));
+      assertFalse(put.get(5L, TimeUnit.SECONDS));
+      assertFalse(buffer.offer(record(3L), 1));
+
+      // The record buffered before the failure is still handed out, then the failure is raised.
+      List<SourceRecord> batch = new ArrayList<>();
+      assertTrue(buffer.drain(batch, 0L));
+      assertEquals(1, batch.size());
+      assertThrows(ConnectException.class, () -> buffer.drain(new ArrayList<>(), 0L));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void drainRespectsLimits() throws InterruptedException {
+    SourceRecordBuffer buffer = new SourceRecordBuffer(100, Long.MAX_VALUE);
+    for (long i = 1; i <= 10; i++) {
+      buffer.put(record(i), 100);
+    }
+    List<SourceRecord> batch = new ArrayList<>();
+    assertTrue(buffer.drain(batch, 0L, 4, Long.MAX_VALUE, 0L));
+    assertEquals(4, batch.size());
+
+    batch.clear();
+    assertTrue(buffer.drain(batch, 0L, 100, 250L, 0L));
+    assertEquals(2, batch.size());
+    assertEquals(5L, batch.get(0).sourceOffset().get("deliveryTag"));
+    assertEquals(4, buffer.size());
+    assertEquals(400L, buffer.bytes());
+
+    batch.clear();
+    assertTrue(buffer.drain(batch, 0L, 100, 50L, 0L), "an oversized record is still returned on its own");
+    assertEquals(1, batch.size());
+  }
+
+  @Test
+  public void drainLingersForFullBatch() throws InterruptedException {
+    SourceRecordBuffer buffer = new SourceRecordBuffer(100, Long.MAX_VALUE);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      buffer.put(record(1L), 1);
+      executor.submit(() -> {
+        for (long i = 2; i <= 5; i++) {
+          TimeUnit.MILLISECONDS.sleep(20);
+          buffer.put(record(i), 1);
+        }
+        return null;
+      });
+      List<SourceRecord> batch = new ArrayList<>();
+      assertTrue(buffer.drain(batch, 1000L, 5, Long.MAX_VALUE, 5000L));
+      assertEquals(5, batch.size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void drainStopsLingeringWhenBufferIsFull() throws InterruptedException {
+    SourceRecordBuffer buffer = new SourceRecordBuffer(2, Long.MAX_VALUE);
+    buffer.put(record(1L), 1);
+    buffer.put(record(2L), 1);
+    List<SourceRecord> batch = new ArrayList<>();
+    long start = System.nanoTime();
+    assertTrue(buffer.drain(batch, 1000L, 5, Long.MAX_VALUE, 5000L));
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000L);
+    assertEquals(2, batch.size());
+  }
+
+  @Test
+  public void closeDiscardsBufferedRecords() throws InterruptedException {
+    SourceRecordBuffer buffer = new SourceRecordBuffer(100, Long.MAX_VALUE);
+    buffer.put(record(1L), 10);
+    buffer.close();
+    assertEquals(0, buffer.size());
+    assertEquals(0L, buffer.bytes());
+    assertFalse(buffer.put(record(2L), 10));
+    assertFalse(buffer.drain(new ArrayList<>(), 10L));
+  }
+
+  @Test
+  public void purgeRemovesMatchingRecords() throws InterruptedException {
+    SourceRecordBuffer buffer = new SourceRecordBuffer(100, Long.MAX_VALUE);
+    for (long i = 1; i <= 4; i++) {
+      buffer.put(record(i), 10);
+    }
+    assertEquals(2, buffer.purge(record -> ((Long) record.sourceOffset().get("deliveryTag")) % 2 == 0));
+    assertEquals(2, buffer.size());
+    assertEquals(20L, buffer.bytes());
+    List<SourceRecord> batch = new ArrayList<>();
+    assertTrue(buffer.drain(batch, 0L));
+    assertEquals(3L, batch.get(1).sourceOffset().get("deliveryTag"));
+  }
+
+  @Test
+  public void drainTimesOutWhenEmpty() throws InterruptedException {
+    SourceRecordBuffer buffer = new SourceRecordBuffer(100, Long.MAX_VALUE);
+    assertFalse(buffer.drain(new ArrayList<>(), 10L, 100, Long.MAX_VALUE, 1000L));
+  }
+}
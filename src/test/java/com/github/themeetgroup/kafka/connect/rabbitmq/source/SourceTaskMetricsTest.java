@@ -0,0 +1,68 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SourceTaskMetricsTest {
+  SourceTaskMetrics metrics;
+
+  @BeforeEach
+  public void before() {
+    this.metrics = new SourceTaskMetrics(new Metrics(), "connector", "0");
+  }
+
+  @AfterEach
+  public void after() {
+    this.metrics.close();
+  }
+
+  double metric(String name) {
+    MetricName metricName = this.metrics.metrics().metricName(name, SourceTaskMetrics.QUEUE_GROUP,
+        ImmutableMap.of("connector", "connector", "task", "0", "queue", "queue"));
+    return (Double) this.metrics.metrics().metrics().get(metricName).metricValue();
+  }
+
+  @Test
+  public void conversionTimePercentiles() {
+    SourceTaskMetrics.QueueMetrics queue = this.metrics.queue("queue");
+    for (int micros = 1; micros <= 100; micros++) {
+      queue.recordConversion(TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+    assertEquals(50.0, metric("conversion-time-p50-us"), 2.0);
+    assertEquals(95.0, metric("conversion-time-p95-us"), 2.0);
+    assertEquals(99.0, metric("conversion-time-p99-us"), 2.0);
+    assertEquals(50.5, metric("conversion-time-avg-us"), 0.001);
+  }
+
+  @Test
+  public void resolvesSingleMicrosecondConversions() {
+    SourceTaskMetrics.QueueMetrics queue = this.metrics.queue("queue");
+    for (int i = 0; i < 10; i++) {
+      queue.recordConversion(TimeUnit.MICROSECONDS.toNanos(3));
+    }
+    assertEquals(3.0, metric("conversion-time-p50-us"), 0.5);
+  }
+}
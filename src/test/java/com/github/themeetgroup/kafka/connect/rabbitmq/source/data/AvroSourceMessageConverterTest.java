@@ -0,0 +1,106 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.kafka.connect.data.SchemaAndValue;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.errors.DataException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AvroSourceMessageConverterTest {
+  static final org.apache.avro.Schema SCHEMA = SchemaBuilder.record("Order")
+      .namespace("com.example")
+      .fields()
+      .requiredString("id")
+      .requiredInt("quantity")
+      .endRecord();
+
+  final Envelope envelope = new Envelope(1L, false, "exchange", "routingKey");
+  final AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder().messageId("message-1").build();
+  SchemaRegistryClient schemaRegistry;
+
+  @BeforeEach
+  public void before() throws Exception {
+    this.schemaRegistry = mock(SchemaRegistryClient.class);
+    when(this.schemaRegistry.getById(1)).thenReturn(SCHEMA);
+    when(this.schemaRegistry.getById(2)).thenReturn(SCHEMA);
+  }
+
+  static byte[] serialize(int schemaId, String id, int quantity) throws IOException {
+    GenericRecord record = new GenericData.Record(SCHEMA);
+    record.put("id", id);
+    record.put("quantity", quantity);
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    outputStream.write(AvroSourceMessageConverter.MAGIC_BYTE);
+    outputStream.write(ByteBuffer.allocate(4).putInt(schemaId).array());
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(outputStream, null);
+    new GenericDatumWriter<GenericRecord>(SCHEMA).write(record, encoder);
+    encoder.flush();
+    return outputStream.toByteArray();
+  }
+
+  @Test
+  public void decodesAndCachesSchema() throws Exception {
+    AvroSourceMessageConverter converter = new AvroSourceMessageConverter(this.schemaRegistry, 10);
+    SchemaAndValue first = converter.schemaAndValue("tag", envelope, basicProperties, serialize(1, "order-1", 3));
+    SchemaAndValue second = converter.schemaAndValue("tag", envelope, basicProperties, serialize(1, "order-2", 4));
+
+    Struct value = (Struct) second.value();
+    assertEquals("order-2", value.getString("id"));
+    assertEquals(Integer.valueOf(4), value.getInt32("quantity"));
+    assertSame(first.schema(), second.schema());
+    assertEquals("message-1", converter.key("tag", envelope, basicProperties, null));
+    verify(this.schemaRegistry, times(1)).getById(1);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedSchema() throws Exception {
+    AvroSourceMessageConverter converter = new AvroSourceMessageConverter(this.schemaRegistry, 1);
+    converter.schemaAndValue("tag", envelope, basicProperties, serialize(1, "order-1", 1));
+    converter.schemaAndValue("tag", envelope, basicProperties, serialize(2, "order-2", 2));
+    converter.schemaAndValue("tag", envelope, basicProperties, serialize(1, "order-3", 3));
+    verify(this.schemaRegistry, times(2)).getById(1);
+    verify(this.schemaRegistry, times(1)).getById(2);
+  }
+
+  @Test
+  public void rejectsUnframedBody() {
+    AvroSourceMessageConverter converter = new AvroSourceMessageConverter(this.schemaRegistry, 10);
+    assertThrows(DataException.class, () -> converter.schemaAndValue("tag", envelope, basicProperties, "{}".getBytes()));
+  }
+}
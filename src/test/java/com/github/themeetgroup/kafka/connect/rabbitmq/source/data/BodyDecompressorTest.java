@@ -0,0 +1,117 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import com.github.luben.zstd.Zstd;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.apache.kafka.connect.errors.DataException;
+import org.junit.jupiter.api.Test;
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyFramedOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class BodyDecompressorTest {
+  private static final byte[] BODY = body(100 * 1024);
+  private final BodyDecompressor decompressor = new BodyDecompressor(1024 * 1024);
+
+  private static byte[] body(int size) {
+    StringBuilder builder = new StringBuilder(size);
+    while (builder.length() < size) {
+      builder.append("{\"id\":").append(builder.length()).append(",\"name\":\"message\"}");
+    }
+    return builder.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  interface StreamFactory {
+    OutputStream wrap(OutputStream output) throws IOException;
+  }
+
+  private static byte[] compress(StreamFactory factory, byte[] body) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream output = factory.wrap(bytes)) {
+      output.write(body);
+    }
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void gzip() throws IOException {
+    assertArrayEquals(BODY, this.decompressor.decompress("gzip", compress(GZIPOutputStream::new, BODY)));
+    assertArrayEquals(BODY, this.decompressor.decompress("x-gzip", compress(GZIPOutputStream::new, BODY)));
+  }
+
+  @Test
+  public void deflate() throws IOException {
+    byte[] compressed = compress(DeflaterOutputStream::new, BODY);
+    assertArrayEquals(BODY, this.decompressor.decompress("deflate", compressed));
+    assertArrayEquals(BODY, this.decompressor.decompress(" Deflate ", compressed));
+  }
+
+  @Test
+  public void lz4() throws IOException {
+    assertArrayEquals(BODY, this.decompressor.decompress("lz4", compress(LZ4FrameOutputStream::new, BODY)));
+  }
+
+  @Test
+  public void snappy() throws IOException {
+    assertArrayEquals(BODY, this.decompressor.decompress("snappy", Snappy.compress(BODY)));
+    assertArrayEquals(BODY, this.decompressor.decompress("snappy", compress(SnappyFramedOutputStream::new, BODY)));
+  }
+
+  @Test
+  public void zstd() {
+    assertArrayEquals(BODY, this.decompressor.decompress("zstd", Zstd.compress(BODY)));
+  }
+
+  @Test
+  public void passesThroughOtherEncodings() {
+    assertSame(BODY, this.decompressor.decompress(null, BODY));
+    assertSame(BODY, this.decompressor.decompress("identity", BODY));
+    assertSame(BODY, this.decompressor.decompress("utf-8", BODY));
+  }
+
+  @Test
+  public void invalidBody() {
+    assertThrows(DataException.class, () -> this.decompressor.decompress("gzip", BODY));
+    assertThrows(DataException.class, () -> this.decompressor.decompress("deflate", new byte[] {1, 2, 3}));
+  }
+
+  @Test
+  public void maxBytes() throws IOException {
+    BodyDecompressor limited = new BodyDecompressor(BODY.length - 1);
+    assertThrows(DataException.class, () -> limited.decompress("gzip", compress(GZIPOutputStream::new, BODY)));
+    assertThrows(DataException.class, () -> limited.decompress("snappy", Snappy.compress(BODY)));
+    assertArrayEquals(BODY, new BodyDecompressor(BODY.length).decompress("deflate", compress(DeflaterOutputStream::new, BODY)));
+  }
+
+  @Test
+  public void releasesLargeBuffers() throws IOException {
+    byte[] large = body(2 * BodyDecompressor.MAX_RETAINED_BUFFER_SIZE);
+    BodyDecompressor decompressor = new BodyDecompressor(Integer.MAX_VALUE);
+    assertArrayEquals(large, decompressor.decompress("gzip", compress(GZIPOutputStream::new, large)));
+    assertArrayEquals(BODY, decompressor.decompress("gzip", compress(GZIPOutputStream::new, BODY)));
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import com.rabbitmq.client.impl.LongStringHelper;
+import org.apache.kafka.connect.data.Struct;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class HeaderConversionPlanTest {
+
+  @Test
+  public void reusesPlanForStableType() {
+    HeaderConversionPlan headerPlan = new HeaderConversionPlan(10);
+    HeaderConversionPlan.Plan first = headerPlan.plan("key", Integer.class);
+    assertSame(first, headerPlan.plan("key", Integer.class));
+    assertEquals(1, headerPlan.size());
+  }
+
+  @Test
+  public void replansWhenTypeChanges() {
+    HeaderConversionPlan headerPlan = new HeaderConversionPlan(10);
+    assertEquals(Integer.valueOf(1234), headerPlan.convert("key", 1234).getInt32("int32"));
+    Struct actual = headerPlan.convert("key", LongStringHelper.asLongString("value"));
+    assertEquals("string", actual.getString("type"));
+    assertEquals("value", actual.getString("string"));
+    assertEquals(Arrays.asList("1", "2"),
+        headerPlan.convert("key", Arrays.asList(LongStringHelper.asLongString("1"), LongStringHelper.asLongString("2"))).getArray("array"));
+    assertEquals(1, headerPlan.size());
+  }
+
+  @Test
+  public void skipsUnsupportedTypes() {
+    HeaderConversionPlan headerPlan = new HeaderConversionPlan(10);
+    assertNull(headerPlan.convert("key", new Object()));
+  }
+
+  @Test
+  public void boundsKeys() {
+    HeaderConversionPlan headerPlan = new HeaderConversionPlan(2);
+    headerPlan.plan("a", String.class);
+    headerPlan.plan("b", String.class);
+    headerPlan.plan("c", String.class);
+    assertEquals(2, headerPlan.size());
+    assertNotSame(headerPlan.plan("a", Long.class), headerPlan.plan("a", String.class));
+    assertEquals(2, headerPlan.size());
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.impl.LongStringHelper;
+import org.apache.kafka.connect.data.Field;
+import org.apache.kafka.connect.data.Struct;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class LazyMessageConverterTest {
+  private static final Logger log = LoggerFactory.getLogger(LazyMessageConverterTest.class);
+
+  final Envelope envelope = new Envelope(1234L, false, "exchange", "routing.key");
+  final byte[] body = "{\"id\": 1}".getBytes();
+  final AMQP.BasicProperties basicProperties;
+
+  public LazyMessageConverterTest() {
+    Map<String, Object> headers = new LinkedHashMap<>();
+    headers.put("string", LongStringHelper.asLongString("value"));
+    headers.put("int", 1234);
+    headers.put("long", 1234L);
+    headers.put("boolean", true);
+    headers.put("timestamp", new Date(1500000000000L));
+    this.basicProperties = new AMQP.BasicProperties.Builder()
+        .contentType("application/json")
+        .messageId("message-1")
+        .timestamp(new Date(1500000000000L))
+        .headers(headers)
+        .build();
+  }
+
+  @Test
+  public void matchesEagerConversion() {
+    Struct expected = new MessageConverter().value("tag", envelope, basicProperties, body);
+    Struct actual = new LazyMessageConverter().value("tag", envelope, basicProperties, body);
+    actual.validate();
+    for (Field field : expected.schema().fields()) {
+      assertEquals(expected.get(field), actual.get(field), field.name() + " does not match.");
+    }
+    assertEquals(new LazyMessageConverter().value("tag", envelope, basicProperties, body), actual);
+    assertEquals(expected.hashCode(), actual.hashCode());
+    assertEquals(expected.toString(), actual.toString());
+  }
+
+  @Test
+  public void materializesOnRead() {
+    LazyMessageConverter.LazyMessageStruct actual = (LazyMessageConverter.LazyMessageStruct)
+        new LazyMessageConverter().value("tag", envelope, basicProperties, body);
+    assertArrayEquals(body, actual.getBytes(MessageConverter.FIELD_MESSAGE_BODY));
+    assertEquals("tag", actual.getString(MessageConverter.FIELD_MESSAGE_CONSUMERTAG));
+    assertFalse(actual.isMaterialized());
+
+    Struct envelopeStruct = actual.getStruct(MessageConverter.FIELD_MESSAGE_ENVELOPE);
+    assertEquals(1234L, envelopeStruct.get(MessageConverter.FIELD_ENVELOPE_DELIVERYTAG));
+    Struct basicPropertiesStruct = (Struct) actual.get(actual.schema().field(MessageConverter.FIELD_MESSAGE_BASICPROPERTIES));
+    assertEquals("message-1", basicPropertiesStruct.getString("messageId"));
+    assertTrue(actual.isMaterialized());
+  }
+
+  /**
+   * Allocation-per-message benchmark for a pipeline that only reads the body, such as ExtractField$Value.
+   */
+  @Test
+  public void allocatesLessPerMessage() {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+    assumeTrue(allocations.isThreadAllocatedMemorySupported());
+    allocations.setThreadAllocatedMemoryEnabled(true);
+
+    final int iterations = 20000;
+    MessageConverter eager = new MessageConverter();
+    MessageConverter lazy = new LazyMessageConverter();
+    // The test logback.xml enables TRACE for this package, which would dominate the measurement.
+    ch.qos.logback.classic.Logger converterLog = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(MessageConverter.class);
+    ch.qos.logback.classic.Level level = converterLog.getLevel();
+    converterLog.setLevel(ch.qos.logback.classic.Level.INFO);
+    final long eagerBytes;
+    final long lazyBytes;
+    try {
+      // Warm up both paths so class loading and JIT compilation are not counted.
+      bytesPerMessage(allocations, eager, iterations);
+      bytesPerMessage(allocations, lazy, iterations);
+
+      eagerBytes = bytesPerMessage(allocations, eager, iterations);
+      lazyBytes = bytesPerMessage(allocations, lazy, iterations);
+    } finally {
+      converterLog.setLevel(level);
+    }
+    log.info("allocatesLessPerMessage() - eager = {} bytes/message, lazy = {} bytes/message", eagerBytes, lazyBytes);
+    assertTrue(lazyBytes * 2 < eagerBytes, "lazy conversion should allocate less than half of eager conversion");
+  }
+
+  long bytesPerMessage(com.sun.management.ThreadMXBean allocations, MessageConverter converter, int iterations) {
+    final long threadId = Thread.currentThread().getId();
+    long checksum = 0;
+    final long before = allocations.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < iterations; i++) {
+      Struct value = converter.value("tag", envelope, basicProperties, body);
+      checksum += value.getBytes(MessageConverter.FIELD_MESSAGE_BODY).length;
+    }
+    final long after = allocations.getThreadAllocatedBytes(threadId);
+    assertEquals((long) body.length * iterations, checksum);
+    return (after - before) / iterations;
+  }
+}
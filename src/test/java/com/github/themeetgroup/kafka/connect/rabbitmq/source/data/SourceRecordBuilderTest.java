@@ -0,0 +1,187 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import com.github.themeetgroup.kafka.connect.rabbitmq.source.RabbitMQSourceConnectorConfig;
+import com.google.common.collect.ImmutableMap;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.utils.Utils;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SourceRecordBuilderTest {
+
+  SourceRecordBuilder builder(Map<String, String> settings) throws Exception {
+    return new SourceRecordBuilder(new RabbitMQSourceConnectorConfig(settings));
+  }
+
+  @Test
+  public void internsSourcePartitions() throws Exception {
+    SourceRecordBuilder builder = builder(ImmutableMap.of(
+        RabbitMQSourceConnectorConfig.TOPIC_CONF, "topic",
+        RabbitMQSourceConnectorConfig.QUEUE_CONF, "queue",
+        RabbitMQSourceConnectorConfig.MESSAGE_CONVERTER_CLASSNAME_CONF, BytesSourceMessageConverter.class.getName(),
+        RabbitMQSourceConnectorConfig.EXCHANGE_CONF, "exchange",
+        RabbitMQSourceConnectorConfig.ROUTING_KEY_CONF, "#"
+    ));
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder().build();
+    SourceRecord first = builder.sourceRecord("queue", "tag", new Envelope(1L, false, "exchange", "a"), basicProperties, new byte[0]);
+    SourceRecord second = builder.sourceRecord("queue", "tag", new Envelope(2L, false, "exchange", "a"), basicProperties, new byte[0]);
+    SourceRecord other = builder.sourceRecord("queue", "tag", new Envelope(3L, false, "exchange", "b"), basicProperties, new byte[0]);
+
+    assertEquals(ImmutableMap.of("queue", "queue", "routingKey", "a"), first.sourcePartition());
+    assertSame(first.sourcePartition(), second.sourcePartition());
+    assertNotSame(first.sourcePartition(), other.sourcePartition());
+    assertEquals(ImmutableMap.of("deliveryTag", 2L), second.sourceOffset());
+    assertEquals(2L, SourceOffset.deliveryTag(second.sourceOffset()));
+  }
+
+  @Test
+  public void clearsContentEncodingOfDecompressedBody() throws Exception {
+    SourceRecordBuilder builder = builder(ImmutableMap.<String, String>builder()
+        .put(RabbitMQSourceConnectorConfig.TOPIC_CONF, "topic")
+        .put(RabbitMQSourceConnectorConfig.QUEUE_CONF, "queue")
+        .put(RabbitMQSourceConnectorConfig.MESSAGE_CONVERTER_CLASSNAME_CONF, MessageConverter.class.getName())
+        .put(RabbitMQSourceConnectorConfig.EXCHANGE_CONF, "exchange")
+        .put(RabbitMQSourceConnectorConfig.ROUTING_KEY_CONF, "#")
+        .put(RabbitMQSourceConnectorConfig.DECOMPRESSION_ENABLED_CONF, "true")
+        .build()
+    );
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+      gzip.write("hello".getBytes(StandardCharsets.UTF_8));
+    }
+    AMQP.BasicProperties gzipped = new AMQP.BasicProperties.Builder().contentEncoding("gzip").build();
+    Struct value = (Struct) builder.sourceRecord("queue", "tag", new Envelope(1L, false, "exchange", "rk"), gzipped, compressed.toByteArray()).value();
+    assertArrayEquals("hello".getBytes(StandardCharsets.UTF_8), value.getBytes(MessageConverter.FIELD_MESSAGE_BODY));
+    Struct properties = value.getStruct(MessageConverter.FIELD_MESSAGE_BASICPROPERTIES);
+    assertNull(properties.getString(MessageConverter.FIELD_BASIC_PROPERTIES_CONTENTENCODING));
+    Map<String, Struct> headers = properties.getMap(MessageConverter.FIELD_BASIC_PROPERTIES_HEADERS);
+    assertEquals("gzip", headers.get(SourceRecordBuilder.ORIGINAL_CONTENT_ENCODING_HEADER).getString("string"));
+
+    AMQP.BasicProperties text = new AMQP.BasicProperties.Builder().contentEncoding("utf-8").build();
+    value = (Struct) builder.sourceRecord("queue", "tag", new Envelope(2L, false, "exchange", "rk"), text, new byte[] {1}).value();
+    properties = value.getStruct(MessageConverter.FIELD_MESSAGE_BASICPROPERTIES);
+    assertEquals("utf-8", properties.getString(MessageConverter.FIELD_BASIC_PROPERTIES_CONTENTENCODING));
+    assertTrue(properties.getMap(MessageConverter.FIELD_BASIC_PROPERTIES_HEADERS).isEmpty());
+  }
+
+  @Test
+  public void topicTemplate() throws Exception {
+    SourceRecordBuilder builder = builder(ImmutableMap.<String, String>builder()
+        .put(RabbitMQSourceConnectorConfig.TOPIC_CONF, "topic")
+        .put(RabbitMQSourceConnectorConfig.TOPIC_TEMPLATE_CONF, "rabbitmq.${routingKey}")
+        .put(RabbitMQSourceConnectorConfig.QUEUE_CONF, "queue")
+        .put(RabbitMQSourceConnectorConfig.MESSAGE_CONVERTER_CLASSNAME_CONF, BytesSourceMessageConverter.class.getName())
+        .put(RabbitMQSourceConnectorConfig.EXCHANGE_CONF, "exchange")
+        .put(RabbitMQSourceConnectorConfig.ROUTING_KEY_CONF, "#")
+        .build()
+    );
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder().build();
+    assertEquals("rabbitmq.orders", builder.sourceRecord("queue", "tag", new Envelope(1L, false, "exchange", "orders"), basicProperties, new byte[0]).topic());
+    assertEquals("topic", builder.sourceRecord("queue", "tag", new Envelope(2L, false, "exchange", ""), basicProperties, new byte[0]).topic());
+  }
+
+  @Test
+  public void partitionKey() throws Exception {
+    SourceRecordBuilder builder = builder(ImmutableMap.<String, String>builder()
+        .put(RabbitMQSourceConnectorConfig.TOPIC_CONF, "topic")
+        .put(RabbitMQSourceConnectorConfig.PARTITION_KEY_CONF, "header:entity")
+        .put(RabbitMQSourceConnectorConfig.KAFKA_PARTITION_COUNT_CONF, "12")
+        .put(RabbitMQSourceConnectorConfig.QUEUE_CONF, "queue")
+        .put(RabbitMQSourceConnectorConfig.MESSAGE_CONVERTER_CLASSNAME_CONF, BytesSourceMessageConverter.class.getName())
+        .put(RabbitMQSourceConnectorConfig.EXCHANGE_CONF, "exchange")
+        .put(RabbitMQSourceConnectorConfig.ROUTING_KEY_CONF, "#")
+        .build()
+    );
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder()
+        .headers(ImmutableMap.of("entity", "customer-42"))
+        .build();
+    int expected = Utils.toPositive(Utils.murmur2("customer-42".getBytes(StandardCharsets.UTF_8))) % 12;
+    for (long tag = 1L; tag <= 3L; tag++) {
+      SourceRecord record = builder.sourceRecord("queue", "tag", new Envelope(tag, false, "exchange", "key" + tag), basicProperties, new byte[0]);
+      assertEquals(Integer.valueOf(expected), record.kafkaPartition());
+    }
+    SourceRecord withoutKey = builder.sourceRecord("queue", "tag", new Envelope(4L, false, "exchange", "key"), new AMQP.BasicProperties.Builder().build(), new byte[0]);
+    assertNull(withoutKey.kafkaPartition());
+  }
+
+  @Test
+  public void partitionKeyRequiresPartitionCount() {
+    assertThrows(ConfigException.class, () -> builder(ImmutableMap.<String, String>builder()
+        .put(RabbitMQSourceConnectorConfig.TOPIC_CONF, "topic")
+        .put(RabbitMQSourceConnectorConfig.PARTITION_KEY_CONF, "correlationId")
+        .put(RabbitMQSourceConnectorConfig.QUEUE_CONF, "queue")
+        .put(RabbitMQSourceConnectorConfig.EXCHANGE_CONF, "exchange")
+        .put(RabbitMQSourceConnectorConfig.ROUTING_KEY_CONF, "#")
+        .build()
+    ));
+  }
+
+  @Test
+  public void partitionedDestination() throws Exception {
+    SourceRecordBuilder builder = builder(ImmutableMap.<String, String>builder()
+        .put(RabbitMQSourceConnectorConfig.TOPIC_CONF, "topic")
+        .put(RabbitMQSourceConnectorConfig.PARTITIONED_DESTINATION_CONF, "orders")
+        .put(RabbitMQSourceConnectorConfig.KAFKA_PARTITION_COUNT_CONF, "4")
+        .put(RabbitMQSourceConnectorConfig.MESSAGE_CONVERTER_CLASSNAME_CONF, BytesSourceMessageConverter.class.getName())
+        .put(RabbitMQSourceConnectorConfig.EXCHANGE_CONF, "exchange")
+        .put(RabbitMQSourceConnectorConfig.ROUTING_KEY_CONF, "#")
+        .build()
+    );
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder().build();
+    Envelope envelope = new Envelope(1L, false, "exchange", "key");
+    assertEquals(Integer.valueOf(0), builder.sourceRecord("orders-0", "tag", envelope, basicProperties, new byte[0]).kafkaPartition());
+    assertEquals(Integer.valueOf(3), builder.sourceRecord("orders-3", "tag", envelope, basicProperties, new byte[0]).kafkaPartition());
+    assertEquals(Integer.valueOf(1), builder.sourceRecord("orders-5", "tag", envelope, basicProperties, new byte[0]).kafkaPartition());
+    assertNull(builder.sourceRecord("invoices", "tag", envelope, basicProperties, new byte[0]).kafkaPartition());
+  }
+
+  @Test
+  public void partitionedDestinationRequiresPartitionCount() {
+    assertThrows(ConfigException.class, () -> builder(ImmutableMap.<String, String>builder()
+        .put(RabbitMQSourceConnectorConfig.TOPIC_CONF, "topic")
+        .put(RabbitMQSourceConnectorConfig.PARTITIONED_DESTINATION_CONF, "orders")
+        .put(RabbitMQSourceConnectorConfig.EXCHANGE_CONF, "exchange")
+        .put(RabbitMQSourceConnectorConfig.ROUTING_KEY_CONF, "#")
+        .build()
+    ));
+  }
+
+  @Test
+  public void sourceOffset() {
+    assertEquals(ImmutableMap.of("deliveryTag", 5L), SourceOffset.of(5L));
+    assertEquals(ImmutableMap.of("deliveryTag", 5L, "offset", 0L), SourceOffset.of(5L, 0L));
+    assertEquals(ImmutableMap.of("deliveryTag", 5L).hashCode(), SourceOffset.of(5L).hashCode());
+    assertEquals(7L, SourceOffset.deliveryTag(ImmutableMap.of("deliveryTag", 7L)));
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright © 2017 Jeremy Custenborder (jcustenborder@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.themeetgroup.kafka.connect.rabbitmq.source.data;
+
+import com.google.common.collect.ImmutableMap;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.impl.LongStringHelper;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TopicTemplateTest {
+  private static final AMQP.BasicProperties NO_HEADERS = new AMQP.BasicProperties.Builder().build();
+
+  @Test
+  public void routingKey() {
+    TopicTemplate template = new TopicTemplate("rabbitmq.${routingKey}", "default");
+    String topic = template.topic("queue", new Envelope(1L, false, "exchange", "orders.created"), NO_HEADERS);
+    assertEquals("rabbitmq.orders.created", topic);
+    assertSame(topic, template.topic("queue", new Envelope(2L, false, "exchange", "orders.created"), NO_HEADERS));
+    assertEquals(1, template.cachedTopics());
+  }
+
+  @Test
+  public void multipleVariables() {
+    TopicTemplate template = new TopicTemplate("${exchange}-${queue}-${header:tenant}", "default");
+    AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder()
+        .headers(ImmutableMap.of("tenant", LongStringHelper.asLongString("acme")))
+        .build();
+    assertEquals("events-queue-acme", template.topic("queue", new Envelope(1L, false, "events", "key"), basicProperties));
+    assertEquals("default", template.topic("queue", new Envelope(1L, false, "events", "key"), NO_HEADERS));
+  }
+
+  @Test
+  public void sanitizes() {
+    assertEquals("a_b_c", TopicTemplate.sanitize("a*b#c"));
+    assertEquals("valid.topic-name_1", TopicTemplate.sanitize("valid.topic-name_1"));
+    assertEquals(TopicTemplate.MAX_TOPIC_LENGTH, TopicTemplate.sanitize(new String(new char[300]).replace('\0', 'a')).length());
+  }
+
+  @Test
+  public void boundsCache() {
+    TopicTemplate template = new TopicTemplate("${routingKey}", "default");
+    for (int i = 0; i < TopicTemplate.MAX_CACHED_TOPICS + 10; i++) {
+      assertEquals("key" + i, template.topic("queue", new Envelope(i, false, "exchange", "key" + i), NO_HEADERS));
+    }
+    assertEquals(TopicTemplate.MAX_CACHED_TOPICS, template.cachedTopics());
+  }
+
+  @Test
+  public void unknownVariable() {
+    assertThrows(IllegalArgumentException.class, () -> new TopicTemplate("${nope}", "default"));
+  }
+}